@@ -1,7 +1,11 @@
 package com.hmdp.config;
 
 import com.hmdp.utils.LoginInterceptor;
+import com.hmdp.utils.RateLimitInterceptor;
+import com.hmdp.utils.ResponseCacheInterceptor;
+import com.hmdp.utils.ResponseCacheManager;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -14,6 +18,13 @@ public class MvcConfig implements WebMvcConfigurer {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ResponseCacheManager responseCacheManager;
+
+    @Value("${hmdp.rate-limit.enabled:true}")
+    private boolean rateLimitEnabled;
+    @Value("${hmdp.rate-limit.trusted-proxies:}")
+    private String[] trustedProxies;
 
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
@@ -30,5 +41,11 @@ public class MvcConfig implements WebMvcConfigurer {
                 ).order(1);
         // token刷新的拦截器
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate)).addPathPatterns("/**").order(0);
+        // 限流拦截器，只对标注了@RateLimit的接口生效
+        if (rateLimitEnabled) {
+            registry.addInterceptor(new RateLimitInterceptor(stringRedisTemplate, trustedProxies)).addPathPatterns("/**").order(2);
+        }
+        // 接口响应缓存，只对标注了@ResponseCache的接口生效
+        registry.addInterceptor(new ResponseCacheInterceptor(responseCacheManager)).addPathPatterns("/**").order(3);
     }
 }
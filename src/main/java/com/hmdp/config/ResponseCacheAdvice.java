@@ -0,0 +1,71 @@
+package com.hmdp.config;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import com.hmdp.utils.ETagUtils;
+import com.hmdp.utils.ResponseCache;
+import com.hmdp.utils.ResponseCacheInterceptor;
+import com.hmdp.utils.ResponseCacheManager;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.http.server.ServletServerHttpRequest;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+import javax.annotation.Resource;
+
+/**
+ * @ResponseCache未命中时，把接口返回的Result序列化后写入缓存，设置ETag；
+ * 客户端的内容与本次结果一致时返回304，不写出内容
+ */
+@RestControllerAdvice
+public class ResponseCacheAdvice implements ResponseBodyAdvice<Object> {
+
+    @Resource
+    private ResponseCacheManager responseCacheManager;
+    @Resource
+    private ObjectMapper objectMapper;
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return returnType.hasMethodAnnotation(ResponseCache.class);
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        //1.只缓存成功的结果
+        if (!(request instanceof ServletServerHttpRequest) || !(body instanceof Result)
+                || !Boolean.TRUE.equals(((Result) body).getSuccess())) {
+            return body;
+        }
+        Object pending = ((ServletServerHttpRequest) request).getServletRequest()
+                .getAttribute(ResponseCacheInterceptor.PENDING_ATTRIBUTE);
+        if (!(pending instanceof ResponseCacheInterceptor.Pending)) {
+            return body;
+        }
+        //2.用同一个ObjectMapper序列化，与直接返回的内容相同
+        byte[] bytes;
+        try {
+            bytes = objectMapper.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            return body;
+        }
+        String etag = ((ResponseCacheInterceptor.Pending) pending).put(responseCacheManager, bytes);
+        response.getHeaders().setETag(etag);
+        response.getHeaders().setCacheControl(ResponseCacheInterceptor.CACHE_CONTROL);
+        //3.客户端的内容仍是最新，返回304
+        if (ETagUtils.matches(request.getHeaders().getFirst(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatusCode(HttpStatus.NOT_MODIFIED);
+            return null;
+        }
+        return body;
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.IdBloomFilters;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存监控
+ * </p>
+ */
+@RestController
+@RequestMapping("/cache")
+public class CacheController {
+
+    @Resource
+    private CacheClient cacheClient;
+    @Resource
+    private IdBloomFilters idBloomFilters;
+
+    /**
+     * 查询一级缓存和Redis缓存的命中率
+     * @return 各级缓存的命中次数和命中率
+     */
+    @GetMapping("/stats")
+    public Result queryStats() {
+        return Result.ok(cacheClient.stats());
+    }
+
+    /**
+     * 查询各key前缀访问最多的key
+     * @return 前缀 -> 最近一段时间内访问次数的估计值，以及是否已经常驻内存
+     */
+    @GetMapping("/hot-keys")
+    public Result queryHotKeys() {
+        return Result.ok(cacheClient.hotKeys());
+    }
+
+    /**
+     * 查询各实体布隆过滤器的状态
+     * @return 位数、元素个数、理论误判率和拦截次数
+     */
+    @GetMapping("/bloom")
+    public Result queryBloomStats() {
+        return Result.ok(idBloomFilters.stats());
+    }
+}
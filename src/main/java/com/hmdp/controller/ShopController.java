@@ -6,6 +6,9 @@ import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.IdBloomFilters;
+import com.hmdp.utils.ResponseCache;
+import com.hmdp.utils.ResponseCacheManager;
 import com.hmdp.utils.SystemConstants;
 import org.springframework.web.bind.annotation.*;
 
@@ -25,12 +28,17 @@ public class ShopController {
 
     @Resource
     public IShopService shopService;
+    @Resource
+    private IdBloomFilters idBloomFilters;
+    @Resource
+    private ResponseCacheManager responseCacheManager;
 
     /**
      * 根据id查询商铺信息
      * @param id 商铺id
      * @return 商铺详情数据
      */
+    @ResponseCache(value = "shop", group = "id", ttl = 30)
     @GetMapping("/{id}")
     public Result queryShopById(@PathVariable("id") Long id) {
         return shopService.queryById(id);
@@ -45,6 +53,8 @@ public class ShopController {
     public Result saveShop(@RequestBody Shop shop) {
         // 写入数据库
         shopService.save(shop);
+        idBloomFilters.add("shop", shop.getId());
+        responseCacheManager.evictAll("shopList");
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -66,6 +76,7 @@ public class ShopController {
      * @param current 页码
      * @return 商铺列表
      */
+    @ResponseCache(value = "shopList", ttl = 30)
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
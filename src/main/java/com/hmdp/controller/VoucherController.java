@@ -4,6 +4,8 @@ package com.hmdp.controller;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.ResponseCache;
+import com.hmdp.utils.ResponseCacheManager;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -22,6 +24,8 @@ public class VoucherController {
 
     @Resource
     private IVoucherService voucherService;
+    @Resource
+    private ResponseCacheManager responseCacheManager;
 
     /**
      * 新增普通券
@@ -31,6 +35,7 @@ public class VoucherController {
     @PostMapping
     public Result addVoucher(@RequestBody Voucher voucher) {
         voucherService.save(voucher);
+        responseCacheManager.evict("voucher", voucher.getShopId());
         return Result.ok(voucher.getId());
     }
 
@@ -46,10 +51,11 @@ public class VoucherController {
     }
 
     /**
-     * 查询店铺的优惠券列表
+     * 查询店铺的优惠券列表，包含秒杀券的库存，缓存时间较短
      * @param shopId 店铺id
      * @return 优惠券列表
      */
+    @ResponseCache(value = "voucher", group = "shopId", ttl = 3)
     @GetMapping("/list/{shopId}")
     public Result queryVoucherOfShop(@PathVariable("shopId") Long shopId) {
        return voucherService.queryVoucherOfShop(shopId);
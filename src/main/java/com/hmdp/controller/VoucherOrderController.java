@@ -7,11 +7,15 @@ import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RateLimit;
 import com.hmdp.utils.UserHolder;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
@@ -31,9 +35,31 @@ public class VoucherOrderController {
 
     @Resource
     private IVoucherOrderService voucherOrderService;
+    @RateLimit(qps = 5000, burst = 1000, keyType = RateLimit.KeyType.USER, limit = 5, window = 1)
     @PostMapping("seckill/{id}")
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return  voucherOrderService.addSeckillVoucher(voucherId);
     }
 
+    /**
+     * 查询秒杀订单的处理结果，支持长轮询
+     * @param orderId 秒杀接口返回的订单id
+     * @param wait 最长等待秒数，订单仍在排队时挂起请求，直到订单落库、失败或超时
+     * @return 订单状态：0排队中，1下单成功，2下单失败
+     */
+    @GetMapping("{id}/status")
+    public DeferredResult<Result> queryOrderStatus(@PathVariable("id") Long orderId,
+                                                   @RequestParam(value = "wait", defaultValue = "0") Integer wait) {
+        return voucherOrderService.queryOrderStatus(orderId, Math.min(Math.max(wait, 0), 30) * 1000L);
+    }
+
+    /**
+     * 查询秒杀订单队列的积压情况
+     * @return 各队列的长度、未确认消息数、消费滞后时间，以及被唯一索引拒绝的一人多单次数
+     */
+    @GetMapping("queue")
+    public Result queryOrderQueue() {
+        return voucherOrderService.queryOrderQueueStatus();
+    }
+
 }
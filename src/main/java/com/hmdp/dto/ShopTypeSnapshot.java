@@ -0,0 +1,44 @@
+package com.hmdp.dto;
+
+import com.hmdp.entity.ShopType;
+import com.hmdp.utils.ETagUtils;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * 店铺类型列表的只读快照：按sort排序的数据、序列化好的响应内容和对应的版本号。
+ * 数据变化时整体替换，不修改已有的快照
+ */
+@Getter
+public class ShopTypeSnapshot {
+
+    /**
+     * 加载时Redis中的版本号
+     */
+    private final long version;
+    private final List<ShopType> types;
+    /**
+     * /shop-type/list 的响应内容，JSON
+     */
+    private final byte[] body;
+    /**
+     * 响应内容的MD5，内容相同的节点返回相同的ETag
+     */
+    private final String etag;
+
+    public ShopTypeSnapshot(long version, List<ShopType> types, byte[] body) {
+        this.version = version;
+        this.types = types;
+        this.body = body;
+        this.etag = ETagUtils.of(body);
+    }
+
+    /**
+     * 客户端缓存的内容是否仍是最新
+     * @param ifNoneMatch 请求头If-None-Match
+     */
+    public boolean matches(String ifNoneMatch) {
+        return ETagUtils.matches(ifNoneMatch, etag);
+    }
+}
@@ -1,6 +1,7 @@
 package com.hmdp.service;
 
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.baomidou.mybatisplus.extension.service.IService;
 
@@ -15,4 +16,14 @@ import com.baomidou.mybatisplus.extension.service.IService;
 public interface IShopTypeService extends IService<ShopType> {
 
     Result queryTypeList();
+
+    /**
+     * 内存中的店铺类型快照，包括序列化好的响应内容和ETag
+     */
+    ShopTypeSnapshot queryTypeSnapshot();
+
+    /**
+     * 后台或直接修改tb_shop_type之后调用，增加Redis中的版本号，各节点重新加载
+     */
+    void updateTypeVersion();
 }
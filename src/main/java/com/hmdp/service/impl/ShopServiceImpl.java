@@ -11,6 +11,7 @@ import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisData;
+import com.hmdp.utils.ResponseCacheManager;
 import lombok.val;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
@@ -43,6 +44,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private ResponseCacheManager responseCacheManager;
     @Override
     public Result queryById(Long id) {
         //互斥锁解决缓存穿透
@@ -146,12 +149,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         //1，查询店铺数据
         Shop shop = getById(id);
         Thread.sleep(200);
-        //2，封装逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-        //3.写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(redisData));
+        //2，封装逻辑过期时间，写入redis
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireSeconds, TimeUnit.SECONDS);
     }
 
     @Override
@@ -163,8 +162,11 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null){
             return Result.fail("id为空");
         }
-        //更新redis缓存
-        stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+        //删除缓存，并通知其他节点清除一级缓存
+        cacheClient.delete(CACHE_SHOP_KEY + id);
+        //清除店铺详情和列表的接口响应缓存
+        responseCacheManager.evict("shop", id);
+        responseCacheManager.evictAll("shopList");
         return Result.ok();
     }
 }
@@ -1,17 +1,23 @@
 package com.hmdp.service.impl;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ShopTypeSnapshot;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
-import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_VERSION_KEY;
 
 /**
  * <p>
@@ -21,28 +27,77 @@ import java.util.stream.Collectors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+    @Resource
+    private ObjectMapper objectMapper;
+
+    /**
+     * 店铺类型几乎不变，整个列表保存在内存中，查询不访问Redis和数据库。
+     * 修改tb_shop_type之后调用updateTypeVersion，各节点在下一次检查版本号时重新加载
+     */
+    private volatile ShopTypeSnapshot snapshot;
+
     @Override
     public Result queryTypeList() {
-        String key = "cache:shopTypeList";
-        List<String> cachedShopTypes = stringRedisTemplate.opsForList().range(key,-1,0);
-        if(cachedShopTypes != null && !cachedShopTypes.isEmpty()){
-            return Result.ok(cachedShopTypes);
-        }
-        List<ShopType> shopTypeList = list();
-        if (shopTypeList == null || shopTypeList.isEmpty()){
+        List<ShopType> types = queryTypeSnapshot().getTypes();
+        if (types.isEmpty()) {
             return Result.fail("店铺类型为空");
         }
-        //将数据库中的数据转换为字符串列表并存入redis缓存
-        List<String> shopTypeStrings = shopTypeList.stream()
-                .map(ShopType::getName)
-                .collect(Collectors.toList());
-        stringRedisTemplate.opsForList().leftPushAll(key,shopTypeStrings);
-        stringRedisTemplate.expire(key,1, TimeUnit.MINUTES);
-        return Result.ok(shopTypeList);
+        return Result.ok(types);
+    }
+
+    @Override
+    public ShopTypeSnapshot queryTypeSnapshot() {
+        ShopTypeSnapshot current = snapshot;
+        return current != null ? current : reload();
+    }
+
+    @Override
+    public void updateTypeVersion() {
+        stringRedisTemplate.opsForValue().increment(CACHE_SHOP_TYPE_VERSION_KEY);
+        reload();
+    }
+
+    /**
+     * 检查Redis中的版本号，与本地快照不同时重新加载
+     */
+    @Scheduled(fixedDelayString = "${hmdp.shop-type.version-check-ms:1000}")
+    public void checkVersion() {
+        ShopTypeSnapshot current = snapshot;
+        if (current != null && current.getVersion() != readVersion()) {
+            reload();
+        }
+    }
+
+    private synchronized ShopTypeSnapshot reload() {
+        //1.先读取版本号再查询数据库，查询期间版本号再次变化时，下一次检查会重新加载
+        long version = readVersion();
+        ShopTypeSnapshot current = snapshot;
+        if (current != null && current.getVersion() == version) {
+            return current;
+        }
+        //2.查询数据库，按sort排序
+        List<ShopType> types = Collections.unmodifiableList(query().orderByAsc("sort").list());
+        //3.提前序列化响应内容
+        Result result = types.isEmpty() ? Result.fail("店铺类型为空") : Result.ok(types);
+        byte[] body;
+        try {
+            body = objectMapper.writeValueAsBytes(result);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("序列化店铺类型失败", e);
+        }
+        snapshot = new ShopTypeSnapshot(version, types, body);
+        log.debug("加载店铺类型，version = {}, size = {}", version, types.size());
+        return snapshot;
+    }
+
+    private long readVersion() {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_TYPE_VERSION_KEY);
+        return version == null ? 0L : Long.parseLong(version);
     }
 }
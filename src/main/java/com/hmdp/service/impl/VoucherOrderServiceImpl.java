@@ -1,26 +1,59 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.OrderWriteAheadLog;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillKeys;
 import com.hmdp.utils.UserHolder;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.RedisSystemException;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.util.Collections;
-import java.util.concurrent.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.hmdp.utils.RedisConstants.*;
 
 /**
  * <p>
@@ -30,6 +63,7 @@ import java.util.concurrent.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
 
@@ -40,9 +74,6 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
-    @Resource
-    private RedissonClient redissonClient;
-
     private static final DefaultRedisScript<Long> SECKILL_SCRPIT;
     static {
         SECKILL_SCRPIT = new DefaultRedisScript<>();
@@ -50,79 +81,714 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         SECKILL_SCRPIT.setResultType(Long.class);
 
     }
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
-    private static final ExecutorService SECKILL_ORDERED_EXECUTOR = Executors.newSingleThreadExecutor();
+    private static final DefaultRedisScript<Long> SECKILL_SEGMENT_SCRPIT;
+    static {
+        SECKILL_SEGMENT_SCRPIT = new DefaultRedisScript<>();
+        SECKILL_SEGMENT_SCRPIT.setLocation(new ClassPathResource("seckill_segment.lua"));
+        SECKILL_SEGMENT_SCRPIT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> SECKILL_RELEASE_SCRPIT;
+    static {
+        SECKILL_RELEASE_SCRPIT = new DefaultRedisScript<>();
+        SECKILL_RELEASE_SCRPIT.setLocation(new ClassPathResource("seckill_release.lua"));
+        SECKILL_RELEASE_SCRPIT.setResultType(Long.class);
+    }
+    private static final DefaultRedisScript<Long> SECKILL_ROLLBACK_SCRPIT;
+    static {
+        SECKILL_ROLLBACK_SCRPIT = new DefaultRedisScript<>();
+        SECKILL_ROLLBACK_SCRPIT.setLocation(new ClassPathResource("seckill_rollback.lua"));
+        SECKILL_ROLLBACK_SCRPIT.setResultType(Long.class);
+    }
+    /**
+     * 集群的订单stream数只增不减：小于参数时改为参数，返回修改后的值
+     */
+    private static final DefaultRedisScript<Long> RAISE_STREAM_SEGMENTS_SCRIPT = new DefaultRedisScript<>(
+            "local n = tonumber(redis.call('get',KEYS[1]) or '0') " +
+            "if(n < tonumber(ARGV[1])) then redis.call('set',KEYS[1],ARGV[1]) return tonumber(ARGV[1]) end " +
+            "return n", Long.class);
+    /**
+     * 当前节点的消费者名称前缀，多个节点共用同一个消费者组
+     */
+    private static final String CONSUMER_PREFIX = NetUtil.getLocalHostName() + "-" + UUID.fastUUID().toString(true).substring(0, 8);
+
+    @Value("${hmdp.seckill.consumers:2}")
+    private int consumerCount;
+    @Value("${hmdp.seckill.segments:1}")
+    private int seckillSegments;
+    @Value("${hmdp.seckill.reclaim-idle-ms:30000}")
+    private long reclaimIdleMs;
+    @Value("${hmdp.seckill.batch-size:200}")
+    private int batchSize;
+    @Value("${hmdp.seckill.batch-wait-ms:50}")
+    private long batchWaitMs;
+    @Value("${hmdp.seckill.queue-mode:stream}")
+    private String queueMode;
+    @Value("${hmdp.seckill.wal.dir:data/wal}")
+    private String walDir;
+    @Value("${hmdp.seckill.wal.segment-records:1048576}")
+    private int walSegmentRecords;
+    @Value("${hmdp.seckill.wal.force-interval-ms:100}")
+    private long walForceIntervalMs;
+
+    private ExecutorService seckillOrderExecutor;
+    /**
+     * 本节点已经启动消费者的订单stream数，与Redis中集群统一的stream数一致
+     */
+    private int streamSegments;
+    /**
+     * 单节点模式下的订单预写日志，stream模式下为null
+     */
+    private OrderWriteAheadLog orderWal;
+    private ScheduledExecutorService walFlusher;
+    /**
+     * 停机时置为false，消费线程处理完手上的订单后退出
+     */
+    private volatile boolean running = true;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+    /**
+     * 本地售罄标记：脚本返回库存不足后，后续请求直接在本地拒绝，不再访问Redis
+     */
+    private final Set<Long> soldOutVouchers = ConcurrentHashMap.newKeySet();
+    /**
+     * 补库存次数，避免补库存之前发出的请求在补库存之后才把售罄标记写回来
+     */
+    private final AtomicLong restockVersion = new AtomicLong();
+    /**
+     * 每张优惠券的库存分段数，创建后不再变化，缓存在本地；补库存时清除，重新读取
+     */
+    private final Map<Long, Integer> voucherSegments = new ConcurrentHashMap<>();
+
+    /**
+     * 订单状态：排队中、下单成功、下单失败
+     */
+    private static final int ORDER_PENDING = 0;
+    private static final int ORDER_SUCCESS = 1;
+    private static final int ORDER_FAILED = 2;
+    /**
+     * 被数据库唯一索引拒绝的一人多单次数
+     */
+    private final LongAdder duplicateOrders = new LongAdder();
+    /**
+     * 本节点上长轮询订单状态的请求
+     */
+    private final Map<Long, Queue<StatusWaiter>> statusWaiters = new ConcurrentHashMap<>();
+
     @PostConstruct
     public void init(){
-        SECKILL_ORDERED_EXECUTOR.submit(new VoucherOrderHandler());
+        //补充库存时由VoucherServiceImpl广播，各节点清除本地售罄标记
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> {
+                    Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+                    restockVersion.incrementAndGet();
+                    soldOutVouchers.remove(voucherId);
+                    voucherSegments.remove(voucherId);
+                },
+                new ChannelTopic(SECKILL_RESTOCK_CHANNEL));
+        //订单状态变化时由消费者广播，各节点唤醒本地挂起的长轮询请求
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> onOrderStatus(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(SECKILL_STATUS_CHANNEL));
+        if ("wal".equals(queueMode)) {
+            startWalConsumer();
+            return;
+        }
+        //订单stream数以Redis中集群统一的值为准（本节点的分段数更大时先调大），
+        //按更少分段数部署的节点也会消费其他节点创建的优惠券所用的全部stream
+        seckillOrderExecutor = Executors.newCachedThreadPool();
+        Long streams = stringRedisTemplate.execute(RAISE_STREAM_SEGMENTS_SCRIPT,
+                Collections.singletonList(SECKILL_STREAM_SEGMENTS_KEY), String.valueOf(seckillSegments));
+        startStreamConsumers(streams.intValue());
+    }
+
+    /**
+     * 其他节点以更大的分段数启动后，集群的订单stream数会增加，定时检查并为新增的stream启动消费者
+     */
+    @Scheduled(initialDelayString = "${hmdp.seckill.stream-check-ms:10000}", fixedDelayString = "${hmdp.seckill.stream-check-ms:10000}")
+    public void checkStreamSegments() {
+        if (orderWal != null || !running) {
+            return;
+        }
+        String streams = stringRedisTemplate.opsForValue().get(SECKILL_STREAM_SEGMENTS_KEY);
+        if (StrUtil.isNotBlank(streams)) {
+            startStreamConsumers(Integer.parseInt(streams));
+        }
     }
+
+    /**
+     * 每个分段的stream各有consumerCount个消费者
+     */
+    private synchronized void startStreamConsumers(int segments) {
+        for (int segment = streamSegments; segment < segments; segment++) {
+            String streamKey = SeckillKeys.streamKey(segment);
+            createGroupIfAbsent(streamKey);
+            for (int i = 0; i < consumerCount; i++) {
+                seckillOrderExecutor.submit(new VoucherOrderHandler(CONSUMER_PREFIX + "-" + segment + "-" + i, streamKey));
+            }
+        }
+        if (segments > streamSegments) {
+            log.info("订单stream数：{}", segments);
+            streamSegments = segments;
+        }
+    }
+
+    /**
+     * 单节点模式：打开预写日志（未落库的订单从检查点开始重放），启动一个消费线程和定时刷盘
+     */
+    private void startWalConsumer() {
+        try {
+            orderWal = new OrderWriteAheadLog(Paths.get(walDir), walSegmentRecords);
+        } catch (IOException e) {
+            throw new IllegalStateException("打开订单预写日志失败：" + walDir, e);
+        }
+        seckillOrderExecutor = Executors.newSingleThreadExecutor();
+        seckillOrderExecutor.submit(new WalOrderHandler());
+        walFlusher = Executors.newSingleThreadScheduledExecutor();
+        walFlusher.scheduleWithFixedDelay(orderWal::force, walForceIntervalMs, walForceIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        //1.通知消费线程退出：stream模式下处理完当前批次，预写日志模式下处理完日志中剩余的订单
+        running = false;
+        seckillOrderExecutor.shutdown();
+        if (!seckillOrderExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("秒杀订单消费线程未能按时退出，未处理的订单将在下次启动时重新处理");
+            seckillOrderExecutor.shutdownNow();
+        }
+        //2.日志刷盘
+        if (orderWal != null) {
+            walFlusher.shutdown();
+            orderWal.close();
+        }
+    }
+
+    private class WalOrderHandler implements Runnable {
+
+        @Override
+        public void run() {
+            long seq = orderWal.checkpointSeq();
+            //停机后继续处理，直到日志中已写入的订单全部落库
+            while (running || seq < orderWal.committedSeq()) {
+                //1.攒批读取日志
+                List<VoucherOrder> orders = readBatch(seq);
+                if (orders.isEmpty()) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+                //2.整批落库，失败时逐条处理；数据库不可用时等待后重试同一批
+                try {
+                    persistOrders(orders);
+                } catch (Exception e) {
+                    log.error("处理预写日志中的订单异常", e);
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    continue;
+                }
+                //3.推进检查点
+                seq += orders.size();
+                orderWal.checkpoint(seq);
+            }
+        }
+
+        private List<VoucherOrder> readBatch(long seq) {
+            List<VoucherOrder> orders = new ArrayList<>(batchSize);
+            orderWal.read(seq, batchSize, orders);
+            if (orders.isEmpty()) {
+                return orders;
+            }
+            long deadline = System.currentTimeMillis() + batchWaitMs;
+            while (running && orders.size() < batchSize && System.currentTimeMillis() < deadline) {
+                if (orderWal.read(seq + orders.size(), batchSize - orders.size(), orders) == 0) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                }
+            }
+            return orders;
+        }
+
+        private void persistOrders(List<VoucherOrder> orders) {
+            try {
+                List<VoucherOrder> rejected = proxy.createVoucherOrders(orders);
+                rollbackSeckill(rejected, false);
+                saveOrderStatus(orders, rejected);
+            } catch (Exception e) {
+                log.error("批量创建订单异常，改为逐条处理", e);
+                for (VoucherOrder voucherOrder : orders) {
+                    boolean success = proxy.createVoucherOrder(voucherOrder);
+                    saveOrderStatus(Collections.singletonList(voucherOrder), success ? ORDER_SUCCESS : ORDER_FAILED);
+                }
+            }
+        }
+    }
+
+    /**
+     * 创建消费者组，stream不存在时一并创建（MKSTREAM）
+     */
+    private void createGroupIfAbsent(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands().xGroupCreate(
+                    streamKey.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP, ReadOffset.from("0"), true));
+        } catch (RedisSystemException e) {
+            // BUSYGROUP：消费者组已经存在
+            log.debug("消费者组已存在：" + SECKILL_ORDER_GROUP);
+        }
+    }
+
     private class VoucherOrderHandler implements Runnable{
-        
+
+        private final String consumerName;
+        private final String streamKey;
+        private long lastReclaim = System.currentTimeMillis();
+
+        VoucherOrderHandler(String consumerName, String streamKey) {
+            this.consumerName = consumerName;
+            this.streamKey = streamKey;
+        }
+
         @Override
         public void run(){
-            while (true){
+            while (running){
+                try {
+                    //1.攒批获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT n BLOCK t STREAMS stream.orders:{sk0} >
+                    List<MapRecord<String, Object, Object>> batch = readBatch();
+                    //2.判断消息是否获取成功
+                    if (batch.isEmpty()) {
+                        //2.1没有消息，顺便接管其他已宕机消费者长时间未确认的消息
+                        reclaimIdlePending();
+                        continue;
+                    }
+                    //3.解析消息中的订单信息，整批在一个事务里创建订单
+                    List<VoucherOrder> orders = new ArrayList<>(batch.size());
+                    RecordId[] ids = new RecordId[batch.size()];
+                    for (int i = 0; i < batch.size(); i++) {
+                        orders.add(toVoucherOrder(batch.get(i)));
+                        ids[i] = batch.get(i).getId();
+                    }
+                    List<VoucherOrder> rejected = proxy.createVoucherOrders(orders);
+                    //3.1被唯一索引拒绝的订单，加回Redis中扣减的库存
+                    rollbackSeckill(rejected, false);
+                    //4.记录订单状态，状态写入成功后再ACK，写入失败时整批重放
+                    saveOrderStatus(orders, rejected);
+                    //5.整批ACK确认 XACK stream.orders:{sk0} g1 id1 id2 ...
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, ids);
+                } catch (Exception e) {
+                    log.error("处理订单异常", e);
+                    handlePendingList();
+                }
+            }
+        }
+
+        /**
+         * 攒够batchSize条或等满batchWaitMs就返回，先到者为准；队列空闲时最多阻塞2秒
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            List<MapRecord<String, Object, Object>> list = readNew(batchSize, Duration.ofSeconds(2));
+            if (list == null || list.isEmpty()) {
+                return batch;
+            }
+            batch.addAll(list);
+            long deadline = System.currentTimeMillis() + batchWaitMs;
+            long remaining;
+            while (batch.size() < batchSize && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                list = readNew(batchSize - batch.size(), Duration.ofMillis(remaining));
+                if (list == null || list.isEmpty()) {
+                    break;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
+
+        private List<MapRecord<String, Object, Object>> readNew(int count, Duration block) {
+            return stringRedisTemplate.opsForStream().read(
+                    Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                    StreamReadOptions.empty().count(count).block(block),
+                    StreamOffset.create(streamKey, ReadOffset.lastConsumed())
+            );
+        }
+
+        /**
+         * 处理pending-list中已投递给自己但未确认的消息
+         */
+        private void handlePendingList() {
+            while (running){
                 try {
-                    //1。获取队列中的订单信息
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    //2.创建订单
-                    handleVoucherOrder(voucherOrder);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    //1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 STREAMS stream.orders:{sk0} 0
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(SECKILL_ORDER_GROUP, consumerName),
+                            StreamReadOptions.empty().count(1),
+                            StreamOffset.create(streamKey, ReadOffset.from("0"))
+                    );
+                    //2.判断是否还有异常消息
+                    if (list == null || list.isEmpty()) {
+                        break;
+                    }
+                    MapRecord<String, Object, Object> record = list.get(0);
+                    VoucherOrder voucherOrder = toVoucherOrder(record);
+                    boolean success = proxy.createVoucherOrder(voucherOrder);
+                    saveOrderStatus(Collections.singletonList(voucherOrder), success ? ORDER_SUCCESS : ORDER_FAILED);
+                    stringRedisTemplate.opsForStream().acknowledge(streamKey, SECKILL_ORDER_GROUP, record.getId());
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
                 }
             }
         }
+
+        /**
+         * 把空闲超过reclaimIdleMs的pending消息XCLAIM到自己名下，再按pending-list处理
+         */
+        private void reclaimIdlePending() {
+            long now = System.currentTimeMillis();
+            if (now - lastReclaim < reclaimIdleMs) {
+                return;
+            }
+            lastReclaim = now;
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(streamKey, SECKILL_ORDER_GROUP, Range.unbounded(), 100);
+            List<RecordId> idle = new ArrayList<>();
+            for (PendingMessage message : pending) {
+                if (!consumerName.equals(message.getConsumerName())
+                        && message.getElapsedTimeSinceLastDelivery().toMillis() >= reclaimIdleMs) {
+                    idle.add(message.getId());
+                }
+            }
+            if (idle.isEmpty()) {
+                return;
+            }
+            List<ByteRecord> claimed = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                    connection.streamCommands().xClaim(streamKey.getBytes(StandardCharsets.UTF_8),
+                            SECKILL_ORDER_GROUP, consumerName, Duration.ofMillis(reclaimIdleMs), idle.toArray(new RecordId[0])));
+            if (claimed != null && !claimed.isEmpty()) {
+                log.info("消费者{}接管了{}条超时未确认的订单消息", consumerName, claimed.size());
+                handlePendingList();
+            }
+        }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //获取用户
-        Long userId =voucherOrder.getUserId();
-        //创建锁对象
-        RLock lock  = redissonClient.getLock("lock:order:" + userId);
-        //获取锁
-        boolean isLock = lock.tryLock();
-        if (!isLock){
-            //获取锁失败，返回错误或重试
-            log.error("不允许重复下单");
+    private VoucherOrder toVoucherOrder(MapRecord<String, Object, Object> record) {
+        Map<Object, Object> values = record.getValue();
+        return BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
+    }
+
+    /**
+     * 数据库拒绝订单后撤销Redis中的扣减，保持Redis与数据库的库存一致。
+     * 库存加回用户的归属分段（分段之间可以互相借库存，总数一致即可），并通知各节点清除售罄标记。
+     * 一人多单被拒绝时数据库中已有该用户的订单，保留购买记录；数据库库存不足时清除购买记录，用户可以重新下单
+     */
+    private void rollbackSeckill(List<VoucherOrder> orders, boolean releaseBuyer) {
+        Set<Long> vouchers = new HashSet<>();
+        for (VoucherOrder order : orders) {
+            int segments = segmentsOf(order.getVoucherId());
+            if (segments == 0) {
+                //秒杀相关的key已经过期
+                continue;
+            }
+            int home = SeckillKeys.homeSegment(order.getUserId(), segments);
+            Long result = stringRedisTemplate.execute(SECKILL_ROLLBACK_SCRPIT,
+                    Arrays.asList(SeckillKeys.stockKey(order.getVoucherId(), home), SeckillKeys.orderKey(order.getVoucherId(), home)),
+                    order.getUserId().toString(), releaseBuyer ? "1" : "0");
+            if (result != null && result == 1) {
+                vouchers.add(order.getVoucherId());
+            }
+        }
+        for (Long voucherId : vouchers) {
+            stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
         }
-    try{
-        proxy.createVoucherOrder(voucherOrder);
-    }finally {
-        lock.unlock();
     }
+
+    /**
+     * 整批落库后记录订单状态，被唯一索引拒绝的订单记为失败
+     */
+    private void saveOrderStatus(List<VoucherOrder> orders, List<VoucherOrder> rejected) {
+        if (rejected.isEmpty()) {
+            saveOrderStatus(orders, ORDER_SUCCESS);
+            return;
+        }
+        List<VoucherOrder> persisted = new ArrayList<>(orders);
+        persisted.removeAll(rejected);
+        if (!persisted.isEmpty()) {
+            saveOrderStatus(persisted, ORDER_SUCCESS);
+        }
+        saveOrderStatus(rejected, ORDER_FAILED);
+    }
+
+    /**
+     * 订单状态写入一个小hash（u用户id，s状态）并设置有效期，再广播给各节点的长轮询请求
+     */
+    private void saveOrderStatus(List<VoucherOrder> orders, int status) {
+        String value = String.valueOf(status);
+        long ttl = TimeUnit.MINUTES.toSeconds(SECKILL_STATUS_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (VoucherOrder order : orders) {
+                String key = SECKILL_STATUS_KEY + order.getId();
+                Map<String, String> hash = new HashMap<>(4);
+                hash.put("u", order.getUserId().toString());
+                hash.put("s", value);
+                conn.hMSet(key, hash);
+                conn.expire(key, ttl);
+            }
+            return null;
+        });
+        //消息格式：订单id:用户id:状态，多个订单以逗号分隔
+        StringBuilder message = new StringBuilder(orders.size() * 40);
+        for (VoucherOrder order : orders) {
+            if (message.length() > 0) {
+                message.append(',');
+            }
+            message.append(order.getId()).append(':').append(order.getUserId()).append(':').append(status);
+        }
+        stringRedisTemplate.convertAndSend(SECKILL_STATUS_CHANNEL, message.toString());
+    }
+
+    private void onOrderStatus(String message) {
+        if (statusWaiters.isEmpty()) {
+            return;
+        }
+        for (String item : StrUtil.split(message, ',')) {
+            List<String> parts = StrUtil.split(item, ':');
+            Long orderId = Long.valueOf(parts.get(0));
+            Queue<StatusWaiter> waiters = statusWaiters.remove(orderId);
+            if (waiters == null) {
+                continue;
+            }
+            Long userId = Long.valueOf(parts.get(1));
+            int status = Integer.parseInt(parts.get(2));
+            for (StatusWaiter waiter : waiters) {
+                waiter.result.setResult(userId.equals(waiter.userId)
+                        ? orderStatusResult(orderId, status) : Result.fail("订单不存在"));
+            }
+        }
     }
 
-    static Long id = 1L;
+    @Override
+    public DeferredResult<Result> queryOrderStatus(Long orderId, long waitMillis) {
+        Long userId = UserHolder.getUser().getId();
+        //1.先注册再查询，避免查询之后、注册之前到达的状态通知被错过
+        StatusWaiter waiter = new StatusWaiter(userId, waitMillis);
+        if (waitMillis > 0) {
+            statusWaiters.computeIfAbsent(orderId, k -> new ConcurrentLinkedQueue<>()).add(waiter);
+            //超时后按当前状态返回（一般仍是排队中），请求结束时移除等待
+            waiter.result.onTimeout(() -> waiter.result.setResult(queryOrderStatus(orderId, userId)));
+            waiter.result.onCompletion(() -> removeWaiter(orderId, waiter));
+        }
+        //2.查询当前状态，已经有结果或无需等待时直接返回
+        Result result = queryOrderStatus(orderId, userId);
+        if (waitMillis <= 0 || !isPending(result)) {
+            waiter.result.setResult(result);
+        }
+        return waiter.result;
+    }
 
+    private void removeWaiter(Long orderId, StatusWaiter waiter) {
+        statusWaiters.computeIfPresent(orderId, (k, waiters) -> {
+            waiters.remove(waiter);
+            return waiters.isEmpty() ? null : waiters;
+        });
+    }
 
+    private Result queryOrderStatus(Long orderId, Long userId) {
+        //1.查询Redis中的订单状态
+        List<Object> values = stringRedisTemplate.opsForHash().multiGet(SECKILL_STATUS_KEY + orderId, Arrays.asList("u", "s"));
+        if (values.get(0) != null) {
+            if (!userId.toString().equals(values.get(0))) {
+                return Result.fail("订单不存在");
+            }
+            return orderStatusResult(orderId, Integer.parseInt((String) values.get(1)));
+        }
+        //2.状态不存在，订单id在状态有效期内生成，说明订单仍在排队
+        long age = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC) - RedisIdWorker.epochSecondOf(orderId);
+        if (age >= 0 && age < TimeUnit.MINUTES.toSeconds(SECKILL_STATUS_TTL)) {
+            return orderStatusResult(orderId, ORDER_PENDING);
+        }
+        //3.状态已过期，以数据库为准
+        VoucherOrder voucherOrder = getById(orderId);
+        if (voucherOrder == null || !userId.equals(voucherOrder.getUserId())) {
+            return Result.fail("订单不存在");
+        }
+        return orderStatusResult(orderId, ORDER_SUCCESS);
+    }
+
+    private static Result orderStatusResult(Long orderId, int status) {
+        Map<String, Object> data = new HashMap<>(4);
+        data.put("orderId", orderId.toString());
+        data.put("status", status);
+        return Result.ok(data);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean isPending(Result result) {
+        return result.getSuccess() && ((Map<String, Object>) result.getData()).get("status").equals(ORDER_PENDING);
+    }
+
+    private static class StatusWaiter {
+        private final Long userId;
+        private final DeferredResult<Result> result;
+
+        StatusWaiter(Long userId, long waitMillis) {
+            this.userId = userId;
+            this.result = new DeferredResult<>(waitMillis > 0 ? waitMillis : null);
+        }
+    }
+
+    /**
+     * 消费者线程在启动时就会开始处理积压的消息，因此不能依赖请求线程里的AopContext获取代理对象
+     */
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
+
     @Override
     public Result addSeckillVoucher(Long voucherId) {
+        //已售罄，直接返回
+        if (soldOutVouchers.contains(voucherId)) {
+            return Result.fail("库存不足");
+        }
         //获取用户
         Long userId  = UserHolder.getUser().getId();
-        //1,执行lua脚本
+        long version = restockVersion.get();
+        int segments = segmentsOf(voucherId);
+        if (segments == 0) {
+            //不是秒杀券，或者秒杀信息还没有写完
+            return Result.fail("库存不足");
+        }
+        //获取订单id
+        long orderId = redisIdWorker.nextId("order");
+        //1.在用户的归属分段执行lua脚本，一次调用内校验秒杀时间、一人一单和库存，有购买资格时脚本会把订单直接写入该分段的stream
+        int home = SeckillKeys.homeSegment(userId, segments);
         Long result =  stringRedisTemplate.execute(
                 SECKILL_SCRPIT,
-                Collections.emptyList(),
-                voucherId.toString(),userId.toString()
+                Arrays.asList(SeckillKeys.stockKey(voucherId, home), SeckillKeys.orderKey(voucherId, home),
+                        SeckillKeys.streamKey(home), SeckillKeys.metaKey(voucherId, home)),
+                voucherId.toString(),userId.toString(),String.valueOf(orderId),segments > 1 ? "1" : "0",
+                orderWal == null ? "1" : "0"
         );
-        // 2.判断结果是否为0
         int r = result.intValue();
+        if (r == 3) {
+            //1.1归属分段库存已空，用户已在归属分段占位，依次到其他分段扣库存
+            r = tryOtherSegments(voucherId, userId, orderId, home, segments);
+        }
+        // 2.判断结果是否为0
         if (r != 0){
-            //2.1不为0代表没有购买资格
-            return Result.fail(r == 1 ? "库存不足":"不能重复下单");
+            //2.1不为0代表没有购买资格，库存不足时记录本地售罄标记
+            if (r == 1 && version == restockVersion.get()) {
+                soldOutVouchers.add(voucherId);
+            }
+            return Result.fail(seckillFailMessage(r));
         }
-        VoucherOrder voucherOrder = new VoucherOrder();
-        //2.2为0 有购买资格，把下单信息把保存到阻塞队列
-        long orderId = redisIdWorker.nextId("order");
-        // TODO 保存阻塞队列
-        voucherOrder.setUserId(orderId);
-//        Long userId = UserHolder.getUser().getId();
-        voucherOrder.setUserId(userId);
-        voucherOrder.setVoucherId(voucherId);
-        orderTasks.add(voucherOrder);
-        //获取代理对象
-         proxy = (IVoucherOrderService) AopContext.currentProxy();
-        return Result.ok(0);
+        //3.单节点模式下先写预写日志再返回，之后即使进程崩溃订单也能重放
+        if (orderWal != null) {
+            orderWal.append(orderId, userId, voucherId);
+        }
+        //4.返回订单id，订单在后台异步落库，客户端通过订单状态接口获取结果
+        //订单id超出了js的安全整数范围，以字符串返回
+        return Result.ok(String.valueOf(orderId));
+    }
+
+    private int tryOtherSegments(Long voucherId, Long userId, long orderId, int home, int segments) {
+        for (int i = 1; i < segments; i++) {
+            int segment = (home + i) % segments;
+            Long result = stringRedisTemplate.execute(
+                    SECKILL_SEGMENT_SCRPIT,
+                    Arrays.asList(SeckillKeys.stockKey(voucherId, segment), SeckillKeys.streamKey(segment)),
+                    voucherId.toString(), userId.toString(), String.valueOf(orderId), orderWal == null ? "1" : "0"
+            );
+            if (result != null && result == 0) {
+                return 0;
+            }
+        }
+        //所有分段都没有库存，释放归属分段中的占位
+        stringRedisTemplate.execute(SECKILL_RELEASE_SCRPIT,
+                Collections.singletonList(SeckillKeys.orderKey(voucherId, home)), userId.toString());
+        return 1;
+    }
+
+    private static String seckillFailMessage(int r) {
+        switch (r) {
+            case 1:
+                return "库存不足";
+            case 2:
+                return "不能重复下单";
+            case 4:
+                return "秒杀尚未开始！";
+            case 5:
+                return "秒杀已经结束！";
+            default:
+                return "下单失败";
+        }
+    }
+
+    /**
+     * @return 优惠券的库存分段数，Redis中还没有分段数时返回0，且不缓存
+     */
+    private int segmentsOf(Long voucherId) {
+        Integer cached = voucherSegments.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        String segments = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        if (StrUtil.isBlank(segments)) {
+            return 0;
+        }
+        int count = Integer.parseInt(segments);
+        voucherSegments.put(voucherId, count);
+        return count;
+    }
+
+    @Override
+    public Result queryOrderQueueStatus() {
+        List<Map<String, Object>> queues = new ArrayList<>();
+        if (orderWal != null) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("mode", "wal");
+            status.put("committed", orderWal.committedSeq());
+            status.put("checkpoint", orderWal.checkpointSeq());
+            status.put("pending", orderWal.committedSeq() - orderWal.checkpointSeq());
+            status.put("segments", orderWal.segmentCount());
+            queues.add(status);
+        } else {
+            for (int segment = 0; segment < streamSegments; segment++) {
+                queues.add(queryStreamStatus(SeckillKeys.streamKey(segment)));
+            }
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("queues", queues);
+        result.put("duplicateOrders", duplicateOrders.sum());
+        return Result.ok(result);
+    }
+
+    private Map<String, Object> queryStreamStatus(String streamKey) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("stream", streamKey);
+        StreamInfo.XInfoStream stream = stringRedisTemplate.opsForStream().info(streamKey);
+        status.put("length", stream.streamLength());
+        status.put("lastGeneratedId", stream.lastGeneratedId());
+        PendingMessagesSummary summary = stringRedisTemplate.opsForStream().pending(streamKey, SECKILL_ORDER_GROUP);
+        status.put("pending", summary.getTotalPendingMessages());
+        status.put("pendingPerConsumer", summary.getPendingMessagesPerConsumer());
+        stringRedisTemplate.opsForStream().groups(streamKey).stream()
+                .filter(group -> SECKILL_ORDER_GROUP.equals(group.groupName()))
+                .findFirst()
+                .ifPresent(group -> {
+                    status.put("lastDeliveredId", group.lastDeliveredId());
+                    // stream的消息id以毫秒时间戳开头，两者之差即为消费滞后的时间
+                    status.put("lagMillis", idMillis(stream.lastGeneratedId()) - idMillis(group.lastDeliveredId()));
+                });
+        return status;
+    }
+
+    private static long idMillis(String recordId) {
+        return Long.parseLong(StrUtil.subBefore(recordId, "-", false));
     }
 
 //    @Override
@@ -157,29 +823,79 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //            lock.unlock();
 //        }
 //    }
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        //一人一单
-        Long userId = voucherOrder.getUserId();
-
-
-        //查询订单
-        int count  = query().eq("user_id",userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-        //判断是否存在
-        if(count > 0){
-            log.error("该用户已经购买过一次");
-            return;
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
+        //1.insert ignore，订单id或(user_id, voucher_id)已存在时影响行数为0
+        int inserted = getBaseMapper().insertIgnoreBatch(Collections.singletonList(voucherOrder));
+        if (inserted == 0) {
+            //1.1同一订单重复投递（整批落库后状态写入失败，消息被重放），视为成功
+            if (getById(voucherOrder.getId()) != null) {
+                return true;
+            }
+            //1.2一人多单，被唯一索引拒绝，加回Redis中扣减的库存
+            duplicateOrders.increment();
+            log.error("该用户已经购买过一次，userId = {}，voucherId = {}", voucherOrder.getUserId(), voucherOrder.getVoucherId());
+            rollbackSeckill(Collections.singletonList(voucherOrder), false);
+            return false;
         }
-
-        //扣减库存
+        //2.扣减库存
         boolean success =  seckillVoucherService.update()
                 .setSql("stock = stock - 1")//set stock = stock - 1
                 .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock",0)//where id = ? and stock > 0
                 .update();
         if (!success){
+            //库存不足，撤销刚插入的订单和Redis中的扣减
             log.error("库存不足");
-            return;
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            rollbackSeckill(Collections.singletonList(voucherOrder), true);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        //1.按优惠券分组，同一批次中重复投递的订单只保留一条
+        Map<Long, Map<Long, VoucherOrder>> ordersOfVoucher = new HashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            ordersOfVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new LinkedHashMap<>())
+                    .putIfAbsent(voucherOrder.getId(), voucherOrder);
+        }
+        List<VoucherOrder> rejected = new ArrayList<>();
+        for (Map.Entry<Long, Map<Long, VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            Map<Long, VoucherOrder> orders = entry.getValue();
+            //2.多行insert ignore，已经落库的订单（stream重复投递）和一人多单由唯一索引过滤
+            int inserted = getBaseMapper().insertIgnoreBatch(new ArrayList<>(orders.values()));
+            if (inserted < orders.size()) {
+                //2.1有订单被忽略时才查询一次，订单id不在表中的就是一人多单
+                Set<Long> existing = new HashSet<>();
+                listByIds(orders.keySet()).forEach(order -> existing.add(order.getId()));
+                for (VoucherOrder order : orders.values()) {
+                    if (!existing.contains(order.getId())) {
+                        rejected.add(order);
+                    }
+                }
+            }
+            if (inserted == 0) {
+                continue;
+            }
+            //3.每张优惠券只扣减一次库存 set stock = stock - k where voucher_id = ? and stock >= k
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId).ge("stock", inserted)
+                    .update();
+            if (!success) {
+                // 回滚整批，消息留在pending-list中逐条重放
+                throw new IllegalStateException("库存不足，voucherId = " + voucherId + "，扣减数量 = " + inserted);
+            }
+        }
+        if (!rejected.isEmpty()) {
+            duplicateOrders.add(rejected.size());
+            log.error("{}个订单因一人多单被唯一索引拒绝", rejected.size());
         }
-        save(voucherOrder);
+        return rejected;
     }
 }
@@ -9,16 +9,24 @@ import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.ResponseCacheManager;
+import com.hmdp.utils.SeckillKeys;
 import com.hmdp.utils.UserHolder;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_SEGMENTS_KEY;
 
 /**
  * <p>
@@ -39,6 +47,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ResponseCacheManager responseCacheManager;
+
+    @Value("${hmdp.seckill.segments:1}")
+    private int seckillSegments;
+    @Value("${hmdp.seckill.queue-mode:stream}")
+    private String queueMode;
+
     @Override
     public Result queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
@@ -50,6 +67,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Override
     @Transactional
     public void addSeckillVoucher(Voucher voucher) {
+        // 分段数不能超过集群的订单stream数，否则多出的分段没有节点消费
+        if (!"wal".equals(queueMode)) {
+            String streams = stringRedisTemplate.opsForValue().get(SECKILL_STREAM_SEGMENTS_KEY);
+            if (streams == null || Integer.parseInt(streams) < seckillSegments) {
+                throw new IllegalStateException("秒杀库存分段数" + seckillSegments + "超过集群的订单stream数" + streams);
+            }
+        }
         // 保存优惠券
         save(voucher);
         // 保存秒杀信息
@@ -59,9 +83,28 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
-        //保存秒杀库存到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY + voucher.getId(),voucher.getStock().toString());
+        //保存秒杀库存到redis中，库存平均拆分到各个分段
+        int stock = voucher.getStock();
+        for (int i = 0; i < seckillSegments; i++) {
+            int segmentStock = stock / seckillSegments + (i < stock % seckillSegments ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(SeckillKeys.stockKey(voucher.getId(), i), String.valueOf(segmentStock));
+        }
+        //保存秒杀时间，供脚本在同一次调用中校验，每个分段各存一份
+        Map<String, String> meta = new HashMap<>();
+        meta.put("begin", String.valueOf(toEpochMilli(voucher.getBeginTime())));
+        meta.put("end", String.valueOf(toEpochMilli(voucher.getEndTime())));
+        for (int i = 0; i < seckillSegments; i++) {
+            stringRedisTemplate.opsForHash().putAll(SeckillKeys.metaKey(voucher.getId(), i), meta);
+        }
+        //最后写入分段数，下单时读到分段数即说明库存和元数据都已写好
+        stringRedisTemplate.opsForValue().set(SECKILL_SEGMENTS_KEY + voucher.getId(), String.valueOf(seckillSegments));
+        //通知所有节点清除该优惠券的本地售罄标记
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucher.getId().toString());
+        //清除店铺优惠券列表的接口响应缓存
+        responseCacheManager.evict("voucher", voucher.getShopId());
     }
 
-
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
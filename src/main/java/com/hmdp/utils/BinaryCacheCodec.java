@@ -0,0 +1,415 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 紧凑的二进制格式。
+ * <p>
+ * 固定18字节的头部：魔数(1) | 格式(1) | 类结构的哈希(4) | 过期的毫秒时间戳(8) | 加载耗时毫秒(4)，之后是数据。
+ * 格式的最高位为1时，过期时间只是Redis中key的过期时间，不是逻辑过期。
+ * 实体类按字段声明顺序依次写入：先是标记各字段是否为null的位图，整数使用zigzag变长编码，
+ * 时间写成秒数和纳秒两个变长整数，其他类型的字段写成JSON字符串。类结构的哈希由字段名和类型计算，
+ * 实体类增删字段后旧数据读取为null，由调用方重新加载。
+ * <p>
+ * 不是实体类的值（集合、数组等）写成JSON，读取方式与JsonCacheCodec相同；不以魔数开头的数据按原来的JSON格式读取，兼容升级前写入的缓存
+ */
+public class BinaryCacheCodec implements CacheCodec {
+
+    private static final byte MAGIC = (byte) 0xC5;
+    private static final byte FORMAT_FIELDS = 1;
+    private static final byte FORMAT_JSON = 2;
+    private static final byte FLAG_KEY_EXPIRE = (byte) 0x80;
+    private static final int HEADER_SIZE = 18;
+
+    private final JsonCacheCodec legacy = new JsonCacheCodec();
+    private final ClassValue<Schema> schemas = new ClassValue<Schema>() {
+        @Override
+        protected Schema computeValue(Class<?> type) {
+            return new Schema(type);
+        }
+    };
+
+    @Override
+    public byte[] encode(Object value, long expireAt, boolean logical, long loadMillis) {
+        Schema schema = schemas.get(value.getClass());
+        byte flag = logical ? 0 : FLAG_KEY_EXPIRE;
+        Writer writer = new Writer();
+        writer.writeByte(MAGIC);
+        writer.writeByte((schema.fields == null ? FORMAT_JSON : FORMAT_FIELDS) | flag);
+        writer.writeInt(schema.hash);
+        writer.writeLong(expireAt);
+        writer.writeInt((int) Math.min(loadMillis, Integer.MAX_VALUE));
+        if (schema.fields == null) {
+            writer.writeBytes(JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8));
+        } else {
+            schema.write(value, writer);
+        }
+        return writer.toByteArray();
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        if (bytes[0] != MAGIC) {
+            return legacy.decode(bytes, type);
+        }
+        int format = bytes[1] & ~FLAG_KEY_EXPIRE;
+        if (format == FORMAT_JSON) {
+            return JsonCacheCodec.toBean(JSONUtil.parse(new String(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE, StandardCharsets.UTF_8)), type);
+        }
+        Schema schema = schemas.get(type);
+        if (schema.fields == null || schema.hash != intAt(bytes, 2)) {
+            return null;
+        }
+        return type.cast(schema.read(new Reader(bytes, HEADER_SIZE)));
+    }
+
+    @Override
+    public long expireAt(byte[] bytes) {
+        if (bytes[0] != MAGIC) {
+            return legacy.expireAt(bytes);
+        }
+        return (bytes[1] & FLAG_KEY_EXPIRE) != 0 ? NO_EXPIRE : longAt(bytes, 6);
+    }
+
+    @Override
+    public long refreshAt(byte[] bytes) {
+        if (bytes[0] != MAGIC) {
+            return legacy.refreshAt(bytes);
+        }
+        return longAt(bytes, 6);
+    }
+
+    @Override
+    public long loadMillis(byte[] bytes) {
+        if (bytes[0] != MAGIC) {
+            return legacy.loadMillis(bytes);
+        }
+        return intAt(bytes, 14) & 0xFFFFFFFFL;
+    }
+
+    private static long longAt(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = value << 8 | (bytes[i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int intAt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16
+                | (bytes[offset + 2] & 0xFF) << 8 | (bytes[offset + 3] & 0xFF);
+    }
+
+    private enum Kind { LONG, INT, SHORT, BYTE, BOOLEAN, DOUBLE, FLOAT, STRING, LOCAL_DATE_TIME, LOCAL_DATE, OTHER }
+
+    /**
+     * 一个类的字段列表，fields为null代表不是实体类
+     */
+    private static class Schema {
+        private final Constructor<?> constructor;
+        private final Field[] fields;
+        private final Kind[] kinds;
+        private final int hash;
+
+        Schema(Class<?> type) {
+            Constructor<?> ctor = null;
+            Field[] fieldArray = null;
+            if (isBean(type)) {
+                try {
+                    ctor = type.getDeclaredConstructor();
+                    ctor.setAccessible(true);
+                    fieldArray = fieldsOf(type);
+                } catch (NoSuchMethodException | RuntimeException e) {
+                    ctor = null;
+                    fieldArray = null;
+                }
+            }
+            this.constructor = ctor;
+            this.fields = fieldArray;
+            if (fieldArray == null) {
+                this.kinds = null;
+                this.hash = 0;
+                return;
+            }
+            this.kinds = new Kind[fieldArray.length];
+            StringBuilder signature = new StringBuilder(type.getName());
+            for (int i = 0; i < fieldArray.length; i++) {
+                kinds[i] = kindOf(fieldArray[i].getType());
+                signature.append(';').append(fieldArray[i].getName()).append(':').append(fieldArray[i].getType().getName());
+            }
+            this.hash = signature.toString().hashCode();
+        }
+
+        void write(Object value, Writer writer) {
+            try {
+                //1.null位图
+                Object[] values = new Object[fields.length];
+                byte[] nulls = new byte[(fields.length + 7) / 8];
+                for (int i = 0; i < fields.length; i++) {
+                    values[i] = fields[i].get(value);
+                    if (values[i] == null) {
+                        nulls[i >>> 3] |= (byte) (1 << (i & 7));
+                    }
+                }
+                writer.writeBytes(nulls);
+                //2.非null的字段
+                for (int i = 0; i < fields.length; i++) {
+                    if (values[i] != null) {
+                        writeField(kinds[i], values[i], writer);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Object read(Reader reader) {
+            try {
+                Object value = constructor.newInstance();
+                int nullBytes = (fields.length + 7) / 8;
+                int nullOffset = reader.position;
+                reader.position += nullBytes;
+                for (int i = 0; i < fields.length; i++) {
+                    if ((reader.bytes[nullOffset + (i >>> 3)] & (1 << (i & 7))) != 0) {
+                        continue;
+                    }
+                    fields[i].set(value, readField(kinds[i], fields[i], reader));
+                }
+                return value;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeField(Kind kind, Object value, Writer writer) {
+            switch (kind) {
+                case LONG:
+                case INT:
+                case SHORT:
+                case BYTE:
+                    writer.writeVarLong(((Number) value).longValue());
+                    break;
+                case BOOLEAN:
+                    writer.writeByte((Boolean) value ? 1 : 0);
+                    break;
+                case DOUBLE:
+                    writer.writeLong(Double.doubleToRawLongBits((Double) value));
+                    break;
+                case FLOAT:
+                    writer.writeInt(Float.floatToRawIntBits((Float) value));
+                    break;
+                case STRING:
+                    writer.writeString((String) value);
+                    break;
+                case LOCAL_DATE_TIME:
+                    LocalDateTime time = (LocalDateTime) value;
+                    writer.writeVarLong(time.toEpochSecond(ZoneOffset.UTC));
+                    writer.writeVarLong(time.getNano());
+                    break;
+                case LOCAL_DATE:
+                    writer.writeVarLong(((LocalDate) value).toEpochDay());
+                    break;
+                default:
+                    writer.writeString(JSONUtil.toJsonStr(value));
+            }
+        }
+
+        private static Object readField(Kind kind, Field field, Reader reader) {
+            switch (kind) {
+                case LONG:
+                    return reader.readVarLong();
+                case INT:
+                    return (int) reader.readVarLong();
+                case SHORT:
+                    return (short) reader.readVarLong();
+                case BYTE:
+                    return (byte) reader.readVarLong();
+                case BOOLEAN:
+                    return reader.readByte() != 0;
+                case DOUBLE:
+                    return Double.longBitsToDouble(reader.readLong());
+                case FLOAT:
+                    return Float.intBitsToFloat(reader.readInt());
+                case STRING:
+                    return reader.readString();
+                case LOCAL_DATE_TIME:
+                    long second = reader.readVarLong();
+                    return LocalDateTime.ofEpochSecond(second, (int) reader.readVarLong(), ZoneOffset.UTC);
+                case LOCAL_DATE:
+                    return LocalDate.ofEpochDay(reader.readVarLong());
+                default:
+                    return JSONUtil.toBean(reader.readString(), field.getGenericType(), true);
+            }
+        }
+
+        private static boolean isBean(Class<?> type) {
+            return !type.isPrimitive() && !type.isArray() && !type.isEnum() && !type.isInterface()
+                    && !type.getName().startsWith("java.")
+                    && !Collection.class.isAssignableFrom(type) && !Map.class.isAssignableFrom(type);
+        }
+
+        /**
+         * 父类的字段在前，按声明顺序
+         */
+        private static Field[] fieldsOf(Class<?> type) {
+            List<Field> result = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                List<Field> own = new ArrayList<>();
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    own.add(field);
+                }
+                result.addAll(0, own);
+            }
+            return result.toArray(new Field[0]);
+        }
+
+        private static Kind kindOf(Class<?> type) {
+            if (type == Long.class || type == long.class) {
+                return Kind.LONG;
+            } else if (type == Integer.class || type == int.class) {
+                return Kind.INT;
+            } else if (type == Short.class || type == short.class) {
+                return Kind.SHORT;
+            } else if (type == Byte.class || type == byte.class) {
+                return Kind.BYTE;
+            } else if (type == Boolean.class || type == boolean.class) {
+                return Kind.BOOLEAN;
+            } else if (type == Double.class || type == double.class) {
+                return Kind.DOUBLE;
+            } else if (type == Float.class || type == float.class) {
+                return Kind.FLOAT;
+            } else if (type == String.class) {
+                return Kind.STRING;
+            } else if (type == LocalDateTime.class) {
+                return Kind.LOCAL_DATE_TIME;
+            } else if (type == LocalDate.class) {
+                return Kind.LOCAL_DATE;
+            }
+            return Kind.OTHER;
+        }
+    }
+
+    private static class Writer {
+        private byte[] buf = new byte[128];
+        private int size;
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void writeInt(int v) {
+            ensure(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        void writeLong(long v) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[size++] = (byte) (v >>> shift);
+            }
+        }
+
+        /**
+         * zigzag变长编码，绝对值小的数占用字节少
+         */
+        void writeVarLong(long v) {
+            ensure(10);
+            long n = (v << 1) ^ (v >> 63);
+            while ((n & ~0x7FL) != 0) {
+                buf[size++] = (byte) ((n & 0x7F) | 0x80);
+                n >>>= 7;
+            }
+            buf[size++] = (byte) n;
+        }
+
+        void writeString(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            writeBytes(bytes);
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+    }
+
+    private static class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes, int position) {
+            this.bytes = bytes;
+            this.position = position;
+        }
+
+        int readByte() {
+            return bytes[position++];
+        }
+
+        int readInt() {
+            int v = intAt(bytes, position);
+            position += 4;
+            return v;
+        }
+
+        long readLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = v << 8 | (bytes[position++] & 0xFF);
+            }
+            return v;
+        }
+
+        long readVarLong() {
+            long n = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                n |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return (n >>> 1) ^ -(n & 1);
+        }
+
+        String readString() {
+            int length = (int) readVarLong();
+            String s = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return s;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 以long为元素的布隆过滤器，判断一定不存在的id。
+ * <p>
+ * 位数组的编号与Redis bitmap相同（第n位是第n/8个字节的从高到低第n%8位），
+ * 可以直接与Redis中的bitmap互相转换，其他节点用SETBIT写入的位与本地计算的位置一致。
+ * 多个线程可以同时写入和查询
+ */
+public class BloomFilter {
+
+    private final long bitSize;
+    private final int hashes;
+    private final AtomicLongArray words;
+
+    public BloomFilter(long bitSize, int hashes) {
+        // 按64位对齐，转换成字节时不会截断
+        this.bitSize = Math.max(64, (bitSize + 63) / 64 * 64);
+        this.hashes = Math.max(1, hashes);
+        this.words = new AtomicLongArray((int) (this.bitSize / 64));
+    }
+
+    /**
+     * 按预计元素个数和期望误判率计算位数和哈希函数个数
+     */
+    public static BloomFilter create(long expected, double fpp) {
+        long n = Math.max(expected, 1);
+        long bits = (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int hashes = (int) Math.max(1, Math.round((double) bits / n * Math.log(2)));
+        return new BloomFilter(bits, hashes);
+    }
+
+    /**
+     * 从Redis中读取的bitmap恢复，bitmap比位数组短时（末尾没有置位）其余位为0
+     */
+    public static BloomFilter fromBytes(byte[] bytes, long bitSize, int hashes) {
+        BloomFilter filter = new BloomFilter(bitSize, hashes);
+        int length = (int) Math.min(bytes.length, filter.bitSize / 8);
+        for (int i = 0; i < length; i++) {
+            int b = bytes[i] & 0xFF;
+            while (b != 0) {
+                int bit = Integer.numberOfLeadingZeros(b) - 24;
+                filter.setBit((long) i * 8 + bit);
+                b &= ~(0x80 >>> bit);
+            }
+        }
+        return filter;
+    }
+
+    public void put(long id) {
+        for (long offset : offsets(id)) {
+            setBit(offset);
+        }
+    }
+
+    public boolean mightContain(long id) {
+        long h1 = mix(id);
+        long h2 = mix(id ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashes; i++) {
+            long offset = Math.floorMod(h1 + i * h2, bitSize);
+            if ((words.get((int) (offset >>> 6)) & (1L << (offset & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * id在位数组中对应的位置，与Redis SETBIT的偏移量相同
+     */
+    public long[] offsets(long id) {
+        return offsets(id, bitSize, hashes);
+    }
+
+    /**
+     * 按位数和哈希函数个数计算id的位置，本地没有过滤器副本时直接计算Redis中的偏移量
+     */
+    public static long[] offsets(long id, long bitSize, int hashes) {
+        // 双重哈希：第i个哈希值为 h1 + i * h2
+        long h1 = mix(id);
+        long h2 = mix(id ^ 0x9E3779B97F4A7C15L) | 1;
+        long[] offsets = new long[hashes];
+        for (int i = 0; i < hashes; i++) {
+            offsets[i] = Math.floorMod(h1 + i * h2, bitSize);
+        }
+        return offsets;
+    }
+
+    /**
+     * 转换成Redis bitmap的字节
+     */
+    public byte[] toBytes() {
+        byte[] bytes = new byte[(int) (bitSize / 8)];
+        for (int i = 0; i < words.length(); i++) {
+            long word = words.get(i);
+            while (word != 0) {
+                int bit = Long.numberOfTrailingZeros(word);
+                long offset = (long) i * 64 + bit;
+                bytes[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+                word &= word - 1;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * 插入count个元素后的理论误判率
+     */
+    public double expectedFpp(long count) {
+        return Math.pow(1 - Math.exp(-(double) hashes * count / bitSize), hashes);
+    }
+
+    public long bitSize() {
+        return bitSize;
+    }
+
+    public int hashes() {
+        return hashes;
+    }
+
+    private void setBit(long offset) {
+        int index = (int) (offset >>> 6);
+        long mask = 1L << (offset & 63);
+        long word;
+        do {
+            word = words.get(index);
+            if ((word & mask) != 0) {
+                return;
+            }
+        } while (!words.compareAndSet(index, word, word | mask));
+    }
+
+    /**
+     * MurmurHash3的64位混合函数
+     */
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        x *= 0xC4CEB93E7FE4A447L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
@@ -1,20 +1,31 @@
 package com.hmdp.utils;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisOperations;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.yaml.snakeyaml.events.Event;
 
-import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -23,104 +34,647 @@ import static com.hmdp.utils.RedisConstants.*;
 public class CacheClient {
 
     private final StringRedisTemplate stringRedisTemplate;
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+    private final CacheCodec cacheCodec;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final IdBloomFilters idBloomFilters;
+    private final CacheMetrics cacheMetrics;
+    private final CacheRebuildScheduler rebuildScheduler;
+    private final HotKeyDetector hotKeyDetector;
 
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 一级缓存中代表空值的标记
+     */
+    private static final Object NULL_VALUE = new Object();
+    /**
+     * 一级缓存：进程内的LRU缓存，按容量和写入后的存活时间淘汰，存放反序列化之后的对象。
+     * 只缓存较短时间，其他节点更新数据时通过发布订阅删除
+     */
+    private final LRUCache<String, Object> localCache;
+    /**
+     * 集群单飞模式下保留的旧值，其他节点重建缓存期间返回
+     */
+    private final LRUCache<String, Object> staleCache;
+    /**
+     * 正在查询数据库的key
+     */
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+    /**
+     * 常驻内存的热点key，不受一级缓存的容量和存活时间限制，由refreshPinned定时从Redis刷新
+     */
+    private final Map<String, Pinned> pinned = new ConcurrentHashMap<>();
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate){
+    /**
+     * 过期时间随机浮动的比例，避免同时写入的key同时过期
+     */
+    @Value("${hmdp.cache.ttl-jitter:0.1}")
+    private double ttlJitter = 0.1;
+    /**
+     * 提前刷新的系数，越大越早刷新，0代表不提前刷新
+     */
+    @Value("${hmdp.cache.early-refresh-beta:1.0}")
+    private double earlyRefreshBeta = 1.0;
+    /**
+     * 常驻内存的热点key数量上限
+     */
+    @Value("${hmdp.cache.hot-key.max-pinned:100}")
+    private int maxPinned = 100;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       CacheCodec cacheCodec,
+                       RedisMessageListenerContainer redisMessageListenerContainer,
+                       IdBloomFilters idBloomFilters,
+                       CacheMetrics cacheMetrics,
+                       CacheRebuildScheduler rebuildScheduler,
+                       HotKeyDetector hotKeyDetector,
+                       @Value("${hmdp.cache.local.max-size:10000}") int localMaxSize,
+                       @Value("${hmdp.cache.local.ttl-ms:5000}") long localTtlMs){
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.cacheCodec = cacheCodec;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.idBloomFilters = idBloomFilters;
+        this.cacheMetrics = cacheMetrics;
+        this.rebuildScheduler = rebuildScheduler;
+        this.hotKeyDetector = hotKeyDetector;
+        this.localCache = CacheUtil.newLRUCache(localMaxSize, localTtlMs);
+        this.staleCache = CacheUtil.newLRUCache(localMaxSize, TimeUnit.MINUTES.toMillis(10));
+    }
+
+    @PostConstruct
+    public void init() {
+        //其他节点删除缓存时，清除本地的一级缓存
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> removeLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL));
     }
 
     public void set(String key, Object value, Long time, TimeUnit unit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,unit);
+        set(key, value, time, unit, 0);
+    }
+
+    /**
+     * @param loadMillis 加载数据的耗时，写入头部，加载越慢越早刷新
+     */
+    private void set(String key, Object value, Long time, TimeUnit unit, long loadMillis){
+        long ttl = jitter(unit.toMillis(time));
+        byte[] bytes = cacheCodec.encode(value, System.currentTimeMillis() + ttl, false, loadMillis);
+        cacheRedisTemplate.opsForValue().set(key, bytes, ttl, TimeUnit.MILLISECONDS);
+        putLocal(key, value);
+    }
+
+    /**
+     * 写入空值，按CACHE_NULL_TTL真正过期
+     */
+    private void setNull(String key) {
+        cacheRedisTemplate.opsForValue().set(key, new byte[0], jitter(TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL)), TimeUnit.MILLISECONDS);
+        putLocal(key, NULL_VALUE);
+    }
+
+    /**
+     * 删除缓存，并通知所有节点清除一级缓存。数据更新后调用
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        removeLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    /**
+     * 一级缓存的大小，以及按key前缀统计的命中、加载耗时和重建情况
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localSize", localCache.size());
+        stats.put("pinnedSize", pinned.size());
+        stats.putAll(cacheMetrics.snapshot());
+        return stats;
+    }
+
+    /**
+     * 各前缀访问最多的key，以及是否常驻内存
+     */
+    public Map<String, List<Map<String, Object>>> hotKeys() {
+        Map<String, List<Map<String, Object>>> hotKeys = hotKeyDetector.topK();
+        hotKeys.values().forEach(items -> items.forEach(item -> item.put("pinned", pinned.containsKey((String) item.get("key")))));
+        return hotKeys;
+    }
+
+    /**
+     * 查询一级缓存（包括常驻内存的热点key），未命中返回null，命中空值返回NULL_VALUE
+     */
+    private Object getLocal(CacheMetrics.Prefix metrics, String key) {
+        Pinned pin = pinned.get(key);
+        Object value = pin == null ? null : pin.value;
+        if (value != null) {
+            metrics.pinnedHit();
+        } else {
+            // 不刷新最后访问时间，存活时间从写入时开始计算
+            value = localCache.get(key, false);
+        }
+        if (value == null) {
+            metrics.localMiss();
+            return null;
+        }
+        metrics.localHit();
+        if (value == NULL_VALUE) {
+            metrics.nullHit();
+        }
+        return value;
+    }
+
+    private void putLocal(String key, Object value) {
+        localCache.put(key, value);
+        Pinned pin = pinned.get(key);
+        if (pin != null) {
+            pin.value = value;
+        }
+    }
+
+    private void removeLocal(String key) {
+        localCache.remove(key);
+        pinned.remove(key);
+    }
+
+    /**
+     * 热点key常驻内存
+     * @param rebuild 从数据库重新加载，Redis中的数据过期时由refreshPinned调用
+     */
+    private void pin(CacheMetrics.Prefix metrics, String key, Class<?> type, Runnable rebuild) {
+        if (pinned.containsKey(key) || pinned.size() >= maxPinned) {
+            return;
+        }
+        Pinned pin = new Pinned(metrics, type, rebuild);
+        pin.value = localCache.get(key, false);
+        pinned.putIfAbsent(key, pin);
+    }
+
+    /**
+     * 刷新常驻内存的热点key：不再是热点的key取消常驻，其余的一次MGET读取Redis中的最新值。
+     * 读取热点key的请求不再访问Redis，Redis中的数据过期或快要过期时在这里提交重建
+     */
+    @Scheduled(fixedDelayString = "${hmdp.cache.hot-key.refresh-ms:1000}")
+    public void refreshPinned() {
+        pinned.keySet().removeIf(key -> !hotKeyDetector.isHot(key));
+        if (pinned.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(pinned.keySet());
+        List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            Pinned pin = pinned.get(key);
+            byte[] bytes = values == null ? null : values.get(i);
+            if (pin == null) {
+                continue;
+            }
+            if (bytes == null) {
+                //Redis中的key已经过期，内存中的值继续使用，直到重建完成
+                rebuildScheduler.submit(pin.metrics, key, pin.rebuild);
+                continue;
+            }
+            if (bytes.length == 0) {
+                pin.value = NULL_VALUE;
+                continue;
+            }
+            Object value = cacheCodec.decode(bytes, pin.type);
+            if (value == null) {
+                continue;
+            }
+            pin.value = value;
+            long expireAt = cacheCodec.expireAt(bytes);
+            if (expireAt != CacheCodec.NO_EXPIRE && expireAt <= now || shouldRefreshEarly(bytes)) {
+                rebuildScheduler.submit(pin.metrics, key, pin.rebuild);
+            }
+        }
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit){
-        //设置逻辑过期
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(unit.toSeconds(time)));
-        //写入redis
-        stringRedisTemplate.opsForValue().set(key,JSONUtil.toJsonStr(redisData));
+        setWithLogicalExpire(key, value, time, unit, 0);
+    }
+
+    private void setWithLogicalExpire(String key, Object value, Long time, TimeUnit unit, long loadMillis){
+        //设置逻辑过期，写入redis
+        long expireAt = System.currentTimeMillis() + jitter(unit.toMillis(time));
+        cacheRedisTemplate.opsForValue().set(key, cacheCodec.encode(value, expireAt, true, loadMillis));
+        putLocal(key, value);
+    }
+
+    /**
+     * 过期时间在原来的基础上随机浮动±ttlJitter
+     */
+    private long jitter(long millis) {
+        if (ttlJitter <= 0) {
+            return millis;
+        }
+        double factor = 1 + (ThreadLocalRandom.current().nextDouble() * 2 - 1) * ttlJitter;
+        return Math.max(1, (long) (millis * factor));
+    }
+
+    /**
+     * 概率性提前刷新（XFetch）：now + loadMillis * beta * -ln(random) >= 过期时间 时刷新。
+     * 越接近过期、加载越慢，刷新的概率越大，热点key通常在过期前就已经由某一个请求刷新
+     */
+    private boolean shouldRefreshEarly(byte[] bytes) {
+        if (earlyRefreshBeta <= 0) {
+            return false;
+        }
+        long refreshAt = cacheCodec.refreshAt(bytes);
+        if (refreshAt == CacheCodec.NO_EXPIRE) {
+            return false;
+        }
+        long loadMillis = Math.max(cacheCodec.loadMillis(bytes), 1);
+        double gap = loadMillis * earlyRefreshBeta * -Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= refreshAt;
     }
 
     public <R,ID> R  queryWithPassThrough
             (String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        return queryWithPassThrough(keyPrefix, id, type, dbFallback, time, unit, false);
+    }
+
+    /**
+     * 缓存穿透查询，未命中时同一个key在本节点只有一个线程查询数据库，其他线程等待它的结果
+     * @param distributed 是否在集群内也只由一个节点查询数据库：用短租约的锁选出重建的节点，
+     *                    其他节点在租约期间返回本地保留的旧值，没有旧值时短暂等待重建结果
+     */
+    public <R,ID> R  queryWithPassThrough
+            (String keyPrefix, ID id, Class<R> type, Function<ID,R> dbFallback, Long time, TimeUnit unit, boolean distributed) {
+        CacheMetrics.Prefix metrics = cacheMetrics.of(keyPrefix);
+        //0.布隆过滤器判断id一定不存在，不再查询Redis和数据库
+        if (!idBloomFilters.mightContain(keyPrefix, id)) {
+            metrics.bloomReject();
+            return null;
+        }
         String key =  keyPrefix + id;
-        String json = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json,type);
+        //记录访问，热点key常驻内存
+        if (hotKeyDetector.record(keyPrefix, key)) {
+            pin(metrics, key, type, () -> load(metrics, key, id, dbFallback, time, unit));
+        }
+        //1.先查一级缓存
+        Object local = getLocal(metrics, key);
+        if (local != null) {
+            return unwrap(local, type);
+        }
+        //2.再查Redis
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        Object cached = decode(metrics, key, bytes, type);
+        if (cached == null) {
+            //3.未命中，单飞查询数据库
+            metrics.miss(1);
+            cached = singleFlight(key, () -> distributed
+                    ? loadWithLease(metrics, key, id, type, dbFallback, time, unit)
+                    : load(metrics, key, id, dbFallback, time, unit));
+        } else if (cached != NULL_VALUE && shouldRefreshEarly(bytes)) {
+            //4.快要过期，由一个线程在后台提前刷新
+            metrics.earlyRefresh();
+            rebuildScheduler.submit(metrics, key, () -> load(metrics, key, id, dbFallback, time, unit));
+        }
+        if (distributed && cached != NULL_VALUE) {
+            staleCache.put(key, cached);
+        }
+        return unwrap(cached, type);
+    }
+
+    /**
+     * 查询Redis，未命中返回null，命中空值返回NULL_VALUE
+     */
+    private Object getFromRedis(CacheMetrics.Prefix metrics, String key, Class<?> type) {
+        return decode(metrics, key, cacheRedisTemplate.opsForValue().get(key), type);
+    }
+
+    private Object decode(CacheMetrics.Prefix metrics, String key, byte[] bytes, Class<?> type) {
+        if (bytes == null) {
+            return null;
         }
         //判断命中的是否是空值
-        if (json != null){
+        if (bytes.length == 0) {
+            metrics.redisHit();
+            metrics.nullHit();
+            putLocal(key, NULL_VALUE);
+            return NULL_VALUE;
+        }
+        Object r = cacheCodec.decode(bytes, type);
+        if (r == null) {
+            //数据格式已经变化，当作未命中
             return null;
         }
+        metrics.redisHit();
+        putLocal(key, r);
+        return r;
+    }
+
+    private <R,ID> Object load(CacheMetrics.Prefix metrics, String key, ID id, Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        long begin = System.nanoTime();
         R r = dbFallback.apply(id);
+        metrics.load(System.nanoTime() - begin);
         if(r == null){
             //将空值写入redis
-            stringRedisTemplate.opsForValue().set(key,"",CACHE_NULL_TTL,TimeUnit.MINUTES);
-            return null;
+            setNull(key);
+            return NULL_VALUE;
         }
-        this.set(key, r, time, unit);
+        this.set(key, r, time, unit, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
         return r;
     }
 
+    private <R,ID> Object loadWithLease(CacheMetrics.Prefix metrics, String key, ID id, Class<R> type,
+                                        Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        //1.拿到租约的节点负责查询数据库
+        String lockKey = LOCK_CACHE_KEY + key;
+        if (rebuildScheduler.tryLock(lockKey, LOCK_CACHE_TTL)) {
+            try {
+                return load(metrics, key, id, dbFallback, time, unit);
+            } finally {
+                rebuildScheduler.unlock(lockKey);
+            }
+        }
+        //2.其他节点正在重建，有旧值先返回旧值
+        Object stale = staleCache.get(key, false);
+        if (stale != null) {
+            metrics.staleServe();
+            return stale;
+        }
+        //3.没有旧值，等待重建结果，租约到期仍没有结果时自己查询
+        long deadline = System.currentTimeMillis() + LOCK_CACHE_TTL;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            Object cached = getFromRedis(metrics, key, type);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        return load(metrics, key, id, dbFallback, time, unit);
+    }
+
+    /**
+     * 同一个key同时只有一个线程执行loader，其他线程等待它的结果
+     */
+    private Object singleFlight(String key, Supplier<Object> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> loading = inFlight.putIfAbsent(key, future);
+        if (loading != null) {
+            try {
+                return loading.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            //上一个加载者可能刚刚完成并写入了一级缓存
+            Object value = localCache.get(key, false);
+            if (value == null) {
+                value = loader.get();
+            }
+            future.complete(value);
+            return value;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    private static class Pinned {
+        private final CacheMetrics.Prefix metrics;
+        private final Class<?> type;
+        private final Runnable rebuild;
+        /**
+         * 还没有读取到值时为null，空值为NULL_VALUE
+         */
+        private volatile Object value;
+
+        private Pinned(CacheMetrics.Prefix metrics, Class<?> type, Runnable rebuild) {
+            this.metrics = metrics;
+            this.type = type;
+            this.rebuild = rebuild;
+        }
+    }
+
+    private static <R> R unwrap(Object value, Class<R> type) {
+        return value == NULL_VALUE ? null : type.cast(value);
+    }
+
+    /**
+     * 逻辑过期查询：过期的数据先返回旧值，由一个线程在后台重建。
+     * 不需要预热，Redis中还没有的key在第一次查询时单飞加载并写入；数据库中不存在的id写入空值，
+     * 空值按CACHE_NULL_TTL真正过期，之后再次查询数据库
+     */
     public <R,ID> R queryWithLogicalExpire
             (String keyPrefix, ID id,Class<R> type,Function<ID,R> dbFallback,Long time, TimeUnit unit) {
-        String key =  CACHE_SHOP_KEY + id;
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        if(StrUtil.isBlank(shopJson)){
-            //如果存在，返回null
+        CacheMetrics.Prefix metrics = cacheMetrics.of(keyPrefix);
+        //布隆过滤器判断id一定不存在，不再查询Redis和数据库
+        if (!idBloomFilters.mightContain(keyPrefix, id)) {
+            metrics.bloomReject();
             return null;
         }
-        //命中，需要先将JSON反序列化为对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        R r =JSONUtil.toBean((JSONObject) redisData.getData(),type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        //判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())){
-            //未过期直接返回对象信息
-            return r;
+        String key =  keyPrefix + id;
+        //记录访问，热点key常驻内存
+        if (hotKeyDetector.record(keyPrefix, key)) {
+            pin(metrics, key, type, () -> loadWithLogicalExpire(metrics, key, id, dbFallback, time, unit));
         }
-        //过期，需要缓存重建
-        //缓存重建
-        //获取互斥锁
-        String lockKey = LOCK_SHOP_KEY + id;
-        boolean isLock = tryLock(lockKey);
-        //判断是否获取锁成功
-        if(isLock){
-            //成功，开启独立线程，实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(() -> {
-                try {
-//                    查询数据库
-                    R r1 = dbFallback.apply(id);
-                    this.setWithLogicalExpire(key,r1,time,unit);
-                }catch (Exception e){
-                    throw new RuntimeException(e);
-                }finally {
-                    //释放锁
-                    unlock(lockKey);
-                }
-            });
+        //1.先查一级缓存，一级缓存存活时间很短，过期后再到Redis判断逻辑过期
+        Object local = getLocal(metrics, key);
+        if (local != null) {
+            return unwrap(local, type);
+        }
+        //2.查询Redis
+        byte[] bytes = cacheRedisTemplate.opsForValue().get(key);
+        if (bytes != null && bytes.length == 0) {
+            //命中空值，数据库中不存在
+            metrics.redisHit();
+            metrics.nullHit();
+            putLocal(key, NULL_VALUE);
+            return null;
+        }
+        R r = bytes == null ? null : cacheCodec.decode(bytes, type);
+        if(r == null){
+            //3.还没有缓存（或数据格式已经变化），单飞查询数据库并写入
+            metrics.miss(1);
+            return unwrap(singleFlight(key, () -> loadWithLogicalExpire(metrics, key, id, dbFallback, time, unit)), type);
         }
+        metrics.redisHit();
+        putLocal(key, r);
+        //4.判断是否过期，过期时间在头部，不需要解析数据
+        if (cacheCodec.expireAt(bytes) > System.currentTimeMillis()){
+            //未过期直接返回对象信息，快要过期时概率性地提前刷新
+            if (shouldRefreshEarly(bytes)) {
+                metrics.earlyRefresh();
+                rebuildScheduler.submit(metrics, key, () -> loadWithLogicalExpire(metrics, key, id, dbFallback, time, unit));
+            }
+            return r;
+        }
+        //5.过期，获取互斥锁，开启独立线程重建缓存，先返回旧值
+        metrics.staleServe();
+        rebuildScheduler.submit(metrics, key, () -> loadWithLogicalExpire(metrics, key, id, dbFallback, time, unit));
+        return r;
+    }
 
+    private <R,ID> Object loadWithLogicalExpire(CacheMetrics.Prefix metrics, String key, ID id,
+                                                Function<ID,R> dbFallback, Long time, TimeUnit unit) {
+        long begin = System.nanoTime();
+        R r = dbFallback.apply(id);
+        metrics.load(System.nanoTime() - begin);
+        if (r == null) {
+            //数据库中不存在（或已经删除），写入会真正过期的空值
+            setNull(key);
+            return NULL_VALUE;
+        }
+        setWithLogicalExpire(key, r, time, unit, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
         return r;
     }
+
     /**
-     * 尝试获取分布式锁
-     *
-     * @param key 锁的键值，用于唯一标识这把锁
-     * @return 返回是否成功获取锁
+     * 批量查询：一次MGET查询Redis，未命中的id一次批量查询数据库，再用一个pipeline写回。
+     * 空值和一级缓存的处理与单个查询相同
+     * @param batchFallback 按id批量查询数据库，返回 id -> 数据，不存在的id不需要返回
+     * @return id -> 数据，按ids的顺序，不存在的id不包含在内
      */
-    private boolean tryLock(String key){
-        // 使用Redis的setIfAbsent功能来尝试设置键值，如果键不存在，则设置成功，表示获取锁成功
-        // 参数分别为：键，值，过期时间，时间单位
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        // 使用BooleanUtil.isTrue判断设置操作的返回值是否为true，表示是否成功获取锁
-        return BooleanUtil.isTrue(flag);
+    public <R,ID> Map<ID,R> multiGet(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                     Function<List<ID>, Map<ID,R>> batchFallback, Long time, TimeUnit unit) {
+        return multiGet(keyPrefix, ids, type, batchFallback, time, unit, false);
     }
 
-    private void unlock(String key){
-        stringRedisTemplate.delete(key);
+    /**
+     * 批量查询，写回时使用逻辑过期。逻辑过期的数据先返回旧值，在后台批量重建
+     */
+    public <R,ID> Map<ID,R> multiGetWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                      Function<List<ID>, Map<ID,R>> batchFallback, Long time, TimeUnit unit) {
+        return multiGet(keyPrefix, ids, type, batchFallback, time, unit, true);
+    }
+
+    private <R,ID> Map<ID,R> multiGet(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                      Function<List<ID>, Map<ID,R>> batchFallback, Long time, TimeUnit unit,
+                                      boolean logicalExpire) {
+        CacheMetrics.Prefix metrics = cacheMetrics.of(keyPrefix);
+        Set<ID> distinctIds = new LinkedHashSet<>(ids);
+        Map<ID, Object> found = new HashMap<>(distinctIds.size() * 2);
+        //1.布隆过滤器和一级缓存
+        List<ID> remoteIds = new ArrayList<>();
+        for (ID id : distinctIds) {
+            if (!idBloomFilters.mightContain(keyPrefix, id)) {
+                metrics.bloomReject();
+                continue;
+            }
+            String key = keyPrefix + id;
+            if (hotKeyDetector.record(keyPrefix, key)) {
+                pin(metrics, key, type,
+                        () -> loadBatch(metrics, keyPrefix, Collections.singletonList(id), batchFallback, time, unit, logicalExpire));
+            }
+            Object local = getLocal(metrics, key);
+            if (local == null) {
+                remoteIds.add(id);
+            } else {
+                found.put(id, local);
+            }
+        }
+        if (!remoteIds.isEmpty()) {
+            //2.一次MGET查询Redis
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            remoteIds.forEach(id -> keys.add(keyPrefix + id));
+            List<byte[]> values = cacheRedisTemplate.opsForValue().multiGet(keys);
+            List<ID> missIds = new ArrayList<>();
+            Map<String, ID> refreshIds = new LinkedHashMap<>();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] bytes = values == null ? null : values.get(i);
+                Object value = bytes == null ? null
+                        : bytes.length == 0 ? NULL_VALUE : cacheCodec.decode(bytes, type);
+                if (value == null) {
+                    missIds.add(id);
+                    continue;
+                }
+                metrics.redisHit();
+                putLocal(keys.get(i), value);
+                found.put(id, value);
+                if (value == NULL_VALUE) {
+                    metrics.nullHit();
+                } else {
+                    long expireAt = cacheCodec.expireAt(bytes);
+                    if (expireAt != CacheCodec.NO_EXPIRE && expireAt <= now) {
+                        metrics.staleServe();
+                        refreshIds.put(keys.get(i), id);
+                    } else if (shouldRefreshEarly(bytes)) {
+                        metrics.earlyRefresh();
+                        refreshIds.put(keys.get(i), id);
+                    }
+                }
+            }
+            //3.未命中的id一次批量查询数据库
+            if (!missIds.isEmpty()) {
+                metrics.miss(missIds.size());
+                found.putAll(loadBatch(metrics, keyPrefix, missIds, batchFallback, time, unit, logicalExpire));
+            }
+            //4.逻辑过期和需要提前刷新的数据在后台批量重建，只重建拿到锁的key
+            if (!refreshIds.isEmpty()) {
+                rebuildScheduler.submit(metrics, refreshIds.keySet(), locked -> {
+                    List<ID> lockedIds = new ArrayList<>(locked.size());
+                    locked.forEach(key -> lockedIds.add(refreshIds.get(key)));
+                    loadBatch(metrics, keyPrefix, lockedIds, batchFallback, time, unit, logicalExpire);
+                });
+            }
+        }
+        //5.按ids的顺序返回
+        Map<ID,R> result = new LinkedHashMap<>(distinctIds.size() * 2);
+        for (ID id : distinctIds) {
+            Object value = found.get(id);
+            if (value != null && value != NULL_VALUE) {
+                result.put(id, type.cast(value));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量查询数据库，用一个pipeline写回Redis，不存在的id写入空值
+     * @return id -> 数据，不存在的id对应NULL_VALUE
+     */
+    private <R,ID> Map<ID,Object> loadBatch(CacheMetrics.Prefix metrics, String keyPrefix, List<ID> ids,
+                                           Function<List<ID>, Map<ID,R>> batchFallback,
+                                           Long time, TimeUnit unit, boolean logicalExpire) {
+        long begin = System.nanoTime();
+        Map<ID,R> rows = batchFallback.apply(ids);
+        long loadNanos = System.nanoTime() - begin;
+        metrics.load(loadNanos);
+        long now = System.currentTimeMillis();
+        long loadMillis = TimeUnit.NANOSECONDS.toMillis(loadNanos);
+        Map<ID,Object> loaded = new HashMap<>(ids.size() * 2);
+        Map<String, byte[]> values = new LinkedHashMap<>(ids.size() * 2);
+        Map<String, Long> ttls = new HashMap<>(ids.size() * 2);
+        for (ID id : ids) {
+            R r = rows == null ? null : rows.get(id);
+            String key = keyPrefix + id;
+            //每个key的过期时间单独浮动
+            long ttl = jitter(r == null ? TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL) : unit.toMillis(time));
+            values.put(key, r == null ? new byte[0] : cacheCodec.encode(r, now + ttl, logicalExpire, loadMillis));
+            ttls.put(key, ttl);
+            putLocal(key, r == null ? NULL_VALUE : r);
+            loaded.put(id, r == null ? NULL_VALUE : r);
+        }
+        cacheRedisTemplate.executePipelined(new SessionCallback<Object>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> Object execute(RedisOperations<K, V> operations) {
+                ValueOperations<String, byte[]> ops = (ValueOperations<String, byte[]>) operations.opsForValue();
+                values.forEach((key, bytes) -> {
+                    if (logicalExpire && bytes.length > 0) {
+                        ops.set(key, bytes);
+                    } else {
+                        ops.set(key, bytes, ttls.get(key), TimeUnit.MILLISECONDS);
+                    }
+                });
+                return null;
+            }
+        });
+        return loaded;
     }
 
 }
@@ -0,0 +1,47 @@
+package com.hmdp.utils;
+
+/**
+ * 缓存值的编解码方式，由 hmdp.cache.codec 选择。
+ * 编码结果中带有过期时间（毫秒时间戳）和加载耗时，可以只读取这些信息而不解析数据本身
+ */
+public interface CacheCodec {
+
+    /**
+     * 没有逻辑过期时间
+     */
+    long NO_EXPIRE = 0L;
+
+    /**
+     * @param expireAt 逻辑过期的毫秒时间戳，NO_EXPIRE代表不设置
+     */
+    default byte[] encode(Object value, long expireAt) {
+        return encode(value, expireAt, true, 0);
+    }
+
+    /**
+     * @param expireAt   过期的毫秒时间戳
+     * @param logical    true代表逻辑过期；false代表expireAt只是Redis中key的过期时间，用于提前刷新
+     * @param loadMillis 从数据库加载数据的耗时
+     */
+    byte[] encode(Object value, long expireAt, boolean logical, long loadMillis);
+
+    /**
+     * @return 数据格式与type不一致（例如实体类增删了字段）时返回null，当作缓存未命中
+     */
+    <R> R decode(byte[] bytes, Class<R> type);
+
+    /**
+     * 只读取逻辑过期时间，没有逻辑过期时返回NO_EXPIRE
+     */
+    long expireAt(byte[] bytes);
+
+    /**
+     * 数据需要重新加载的时间（逻辑过期时间或key的过期时间），不知道时返回NO_EXPIRE
+     */
+    long refreshAt(byte[] bytes);
+
+    /**
+     * 写入时记录的加载耗时，没有记录时返回0
+     */
+    long loadMillis(byte[] bytes);
+}
@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * CacheClient按key前缀统计的指标：各级缓存的命中、空值命中、逻辑过期返回旧值、提前刷新、重建的次数，
+ * 以及查询数据库和重建的耗时分布。
+ * <p>
+ * 计数使用LongAdder，高并发下各线程写入不同的分段；前缀在第一次使用时创建，之后只是一次ConcurrentHashMap查找。
+ * 通过 GET /cache/stats 和JMX（hmdp:type=CacheMetrics）查看
+ */
+@Component
+@ManagedResource(objectName = "hmdp:type=CacheMetrics", description = "CacheClient各key前缀的缓存指标")
+public class CacheMetrics {
+
+    private final Map<String, Prefix> prefixes = new ConcurrentHashMap<>();
+    private volatile IntSupplier rebuildQueueDepth = () -> 0;
+
+    public Prefix of(String keyPrefix) {
+        Prefix prefix = prefixes.get(keyPrefix);
+        return prefix != null ? prefix : prefixes.computeIfAbsent(keyPrefix, k -> new Prefix());
+    }
+
+    public void setRebuildQueueDepth(IntSupplier rebuildQueueDepth) {
+        this.rebuildQueueDepth = rebuildQueueDepth;
+    }
+
+    /**
+     * 汇总和各前缀的指标
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("hits", getHits());
+        snapshot.put("misses", getMisses());
+        snapshot.put("hitRatio", getHitRatio());
+        snapshot.put("rebuildQueueDepth", getRebuildQueueDepth());
+        Map<String, Object> items = new TreeMap<>();
+        prefixes.forEach((name, prefix) -> items.put(name, prefix.snapshot()));
+        snapshot.put("prefixes", items);
+        return snapshot;
+    }
+
+    @ManagedAttribute(description = "一级缓存和Redis的命中次数")
+    public long getHits() {
+        return sum(p -> p.localHits.sum() + p.redisHits.sum());
+    }
+
+    @ManagedAttribute(description = "查询数据库的次数")
+    public long getMisses() {
+        return sum(p -> p.misses.sum());
+    }
+
+    @ManagedAttribute(description = "命中率")
+    public double getHitRatio() {
+        long hits = getHits();
+        long misses = getMisses();
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @ManagedAttribute(description = "等待执行的缓存重建任务数")
+    public int getRebuildQueueDepth() {
+        return rebuildQueueDepth.getAsInt();
+    }
+
+    @ManagedAttribute(description = "全部指标，JSON格式")
+    public String getSnapshotJson() {
+        return JSONUtil.toJsonStr(snapshot());
+    }
+
+    @ManagedOperation(description = "查询一个key前缀的指标，JSON格式")
+    public String prefixStats(String keyPrefix) {
+        Prefix prefix = prefixes.get(keyPrefix);
+        return prefix == null ? "{}" : JSONUtil.toJsonStr(prefix.snapshot());
+    }
+
+    private long sum(ToLongFunction<Prefix> counter) {
+        long total = 0;
+        for (Prefix prefix : prefixes.values()) {
+            total += counter.applyAsLong(prefix);
+        }
+        return total;
+    }
+
+    /**
+     * 一个key前缀的指标
+     */
+    public static class Prefix {
+        private final LongAdder localHits = new LongAdder();
+        private final LongAdder pinnedHits = new LongAdder();
+        private final LongAdder localMisses = new LongAdder();
+        private final LongAdder redisHits = new LongAdder();
+        private final LongAdder nullHits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder staleServes = new LongAdder();
+        private final LongAdder earlyRefreshes = new LongAdder();
+        private final LongAdder bloomRejects = new LongAdder();
+        private final LongAdder rebuilds = new LongAdder();
+        private final LongAdder rebuildFailures = new LongAdder();
+        private final LongAdder rebuildDeduped = new LongAdder();
+        private final LongAdder rebuildShed = new LongAdder();
+        private final LatencyHistogram loadLatency = new LatencyHistogram();
+        private final LatencyHistogram rebuildLatency = new LatencyHistogram();
+
+        public void localHit() {
+            localHits.increment();
+        }
+
+        /**
+         * 命中常驻内存的热点key，同时计入一级缓存的命中
+         */
+        public void pinnedHit() {
+            pinnedHits.increment();
+        }
+
+        public void localMiss() {
+            localMisses.increment();
+        }
+
+        public void redisHit() {
+            redisHits.increment();
+        }
+
+        /**
+         * 命中空值，同时计入所在层级的命中
+         */
+        public void nullHit() {
+            nullHits.increment();
+        }
+
+        public void miss(int count) {
+            misses.add(count);
+        }
+
+        public void staleServe() {
+            staleServes.increment();
+        }
+
+        public void earlyRefresh() {
+            earlyRefreshes.increment();
+        }
+
+        public void bloomReject() {
+            bloomRejects.increment();
+        }
+
+        /**
+         * 查询数据库的耗时，包括请求线程加载和后台重建
+         */
+        public void load(long nanos) {
+            loadLatency.record(nanos);
+        }
+
+        /**
+         * 一次后台重建的耗时，包括加锁和写回
+         */
+        public void rebuild(long nanos, boolean success) {
+            rebuilds.increment();
+            if (!success) {
+                rebuildFailures.increment();
+            }
+            rebuildLatency.record(nanos);
+        }
+
+        /**
+         * key已经在重建，重复的任务被合并
+         */
+        public void rebuildDeduped() {
+            rebuildDeduped.increment();
+        }
+
+        /**
+         * 重建队列已满，任务被丢弃
+         */
+        public void rebuildShed(int count) {
+            rebuildShed.add(count);
+        }
+
+        Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            long hits = localHits.sum() + redisHits.sum();
+            long missCount = misses.sum();
+            snapshot.put("localHits", localHits.sum());
+            snapshot.put("localMisses", localMisses.sum());
+            snapshot.put("pinnedHits", pinnedHits.sum());
+            snapshot.put("redisHits", redisHits.sum());
+            snapshot.put("nullHits", nullHits.sum());
+            snapshot.put("misses", missCount);
+            snapshot.put("hitRatio", hits + missCount == 0 ? 0 : (double) hits / (hits + missCount));
+            snapshot.put("staleServes", staleServes.sum());
+            snapshot.put("earlyRefreshes", earlyRefreshes.sum());
+            snapshot.put("bloomRejects", bloomRejects.sum());
+            snapshot.put("rebuilds", rebuilds.sum());
+            snapshot.put("rebuildFailures", rebuildFailures.sum());
+            snapshot.put("rebuildDeduped", rebuildDeduped.sum());
+            snapshot.put("rebuildShed", rebuildShed.sum());
+            snapshot.put("load", loadLatency.snapshot());
+            snapshot.put("rebuild", rebuildLatency.snapshot());
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static com.hmdp.utils.RedisConstants.LOCK_CACHE_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_REBUILD_TTL;
+
+/**
+ * 缓存重建调度：逻辑过期和提前刷新的key在这里排队，由固定数量的线程在后台重新加载。
+ * <ul>
+ *     <li>同一个key在本节点同时只有一个重建任务，重复提交只增加它的访问次数，不访问Redis</li>
+ *     <li>访问次数多的任务先执行</li>
+ *     <li>等待的任务数有上限，队列满时直接丢弃，调用方继续返回旧值。数据库变慢时不会堆积线程和任务</li>
+ *     <li>执行前获取Redis锁，其他节点正在重建的key跳过；锁的值是本线程的标识，释放时用lua脚本校验</li>
+ * </ul>
+ */
+@Slf4j
+@Component
+public class CacheRebuildScheduler {
+
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final int queueCapacity;
+    /**
+     * 等待或正在执行的任务，key -> 任务
+     */
+    private final Map<String, Task> pending = new ConcurrentHashMap<>();
+    /**
+     * 等待执行的任务，按提交顺序，由lock保护
+     */
+    private final List<Task> waiting = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean running = true;
+
+    public CacheRebuildScheduler(StringRedisTemplate stringRedisTemplate,
+                                 CacheMetrics cacheMetrics,
+                                 @Value("${hmdp.cache.rebuild.threads:4}") int threads,
+                                 @Value("${hmdp.cache.rebuild.queue-capacity:1000}") int queueCapacity) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.queueCapacity = queueCapacity;
+        cacheMetrics.setRebuildQueueDepth(this::queueSize);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(this::work, "cache-rebuild-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * 提交一个key的重建任务
+     * @return 是否加入队列，已经在重建或队列已满时返回false
+     */
+    public boolean submit(CacheMetrics.Prefix metrics, String key, Runnable loader) {
+        return submit(metrics, Collections.singletonList(key), locked -> loader.run());
+    }
+
+    /**
+     * 提交一批key的重建任务，已经在重建的key会被去掉
+     * @param loader 参数是拿到Redis锁的key，其他节点正在重建的key不包含在内
+     * @return 是否加入队列
+     */
+    public boolean submit(CacheMetrics.Prefix metrics, Collection<String> keys, Consumer<Set<String>> loader) {
+        Task task = new Task(metrics, loader);
+        //1.进程内去重，已经在等待或执行的key只增加访问次数
+        for (String key : keys) {
+            Task existing = pending.putIfAbsent(key, task);
+            if (existing == null) {
+                task.keys.add(key);
+            } else {
+                existing.hits.incrementAndGet();
+                metrics.rebuildDeduped();
+            }
+        }
+        if (task.keys.isEmpty()) {
+            return false;
+        }
+        task.hits.addAndGet(task.keys.size());
+        //2.队列已满，丢弃任务，调用方继续返回旧值
+        lock.lock();
+        try {
+            if (running && waiting.size() < queueCapacity) {
+                waiting.add(task);
+                notEmpty.signal();
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        task.keys.forEach(key -> pending.remove(key, task));
+        metrics.rebuildShed(task.keys.size());
+        return false;
+    }
+
+    public int queueSize() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取Redis锁，锁的值是当前线程的标识
+     */
+    public boolean tryLock(String key, long leaseMillis) {
+        Boolean success = stringRedisTemplate.opsForValue()
+                .setIfAbsent(key, ID_PREFIX + Thread.currentThread().getId(), leaseMillis, TimeUnit.MILLISECONDS);
+        return Boolean.TRUE.equals(success);
+    }
+
+    /**
+     * 释放当前线程持有的锁。锁已经过期并被其他线程获取时不会删除
+     */
+    public void unlock(String key) {
+        stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(key), ID_PREFIX + Thread.currentThread().getId());
+    }
+
+    private void work() {
+        while (running) {
+            Task task;
+            try {
+                task = take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            execute(task);
+        }
+    }
+
+    /**
+     * 取出访问次数最多的任务，次数相同时先提交的先执行
+     */
+    private Task take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (waiting.isEmpty()) {
+                notEmpty.await();
+            }
+            int best = 0;
+            for (int i = 1; i < waiting.size(); i++) {
+                if (waiting.get(i).hits.get() > waiting.get(best).hits.get()) {
+                    best = i;
+                }
+            }
+            return waiting.remove(best);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void execute(Task task) {
+        long begin = System.nanoTime();
+        Set<String> locked = new LinkedHashSet<>();
+        boolean success = false;
+        try {
+            //3.获取Redis锁，其他节点正在重建的key跳过
+            for (String key : task.keys) {
+                if (tryLock(LOCK_CACHE_KEY + key, LOCK_REBUILD_TTL)) {
+                    locked.add(key);
+                }
+            }
+            if (!locked.isEmpty()) {
+                task.loader.accept(locked);
+            }
+            success = true;
+        } catch (Exception e) {
+            log.error("重建缓存失败，keys = {}", task.keys, e);
+        } finally {
+            //4.释放锁，之后再移出pending，期间的重复提交仍然被去重
+            for (String key : locked) {
+                try {
+                    unlock(LOCK_CACHE_KEY + key);
+                } catch (Exception e) {
+                    log.warn("释放重建锁失败，key = {}", key, e);
+                }
+            }
+            task.keys.forEach(key -> pending.remove(key, task));
+            if (!locked.isEmpty() || !success) {
+                task.metrics.rebuild(System.nanoTime() - begin, success);
+            }
+        }
+    }
+
+    private static class Task {
+        private final CacheMetrics.Prefix metrics;
+        private final Consumer<Set<String>> loader;
+        private final List<String> keys = new ArrayList<>();
+        /**
+         * 提交以来被访问的次数
+         */
+        private final AtomicLong hits = new AtomicLong();
+
+        private Task(CacheMetrics.Prefix metrics, Consumer<Set<String>> loader) {
+            this.metrics = metrics;
+            this.loader = loader;
+        }
+    }
+}
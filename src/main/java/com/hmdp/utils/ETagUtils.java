@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import org.springframework.util.DigestUtils;
+
+/**
+ * 按响应内容生成ETag，以及判断客户端缓存是否仍是最新
+ */
+public class ETagUtils {
+
+    /**
+     * 响应内容的MD5，内容相同的节点返回相同的ETag
+     */
+    public static String of(byte[] body) {
+        return "\"" + DigestUtils.md5DigestAsHex(body) + "\"";
+    }
+
+    /**
+     * @param ifNoneMatch 请求头If-None-Match，可能有多个ETag或弱ETag
+     * @return true：客户端的内容与etag一致，可以返回304
+     */
+    public static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
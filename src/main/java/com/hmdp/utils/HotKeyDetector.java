@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 热点key探测：抽样记录缓存访问，用Count-Min Sketch估计每个key在滑动窗口内的访问次数。
+ * <p>
+ * 窗口分为BUCKETS段，每段一个sketch，每隔slide-ms清空最旧的一段；估计值是各段之和。
+ * 估计值超过阈值一半的key进入候选列表（heavy hitters），用于按前缀列出访问最多的key；
+ * 超过阈值的key由CacheClient常驻在进程内存中
+ */
+@Component
+public class HotKeyDetector {
+
+    private static final int BUCKETS = 5;
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final int MAX_CANDIDATES = 1024;
+
+    private final boolean enabled;
+    /**
+     * 每sampleRate次访问记录一次
+     */
+    private final int sampleRate;
+    /**
+     * 窗口内的访问次数达到threshold即为热点
+     */
+    private final long threshold;
+    private final int topK;
+    private final AtomicIntegerArray[] sketches = new AtomicIntegerArray[BUCKETS];
+    private volatile int current;
+    /**
+     * 候选热点key -> key前缀
+     */
+    private final Map<String, String> candidates = new ConcurrentHashMap<>();
+
+    public HotKeyDetector(@Value("${hmdp.cache.hot-key.enabled:true}") boolean enabled,
+                          @Value("${hmdp.cache.hot-key.sample-rate:8}") int sampleRate,
+                          @Value("${hmdp.cache.hot-key.threshold:500}") long threshold,
+                          @Value("${hmdp.cache.hot-key.top-k:10}") int topK) {
+        this.enabled = enabled;
+        this.sampleRate = Math.max(sampleRate, 1);
+        this.threshold = threshold;
+        this.topK = topK;
+        for (int i = 0; i < BUCKETS; i++) {
+            sketches[i] = new AtomicIntegerArray(DEPTH * WIDTH);
+        }
+    }
+
+    /**
+     * 记录一次访问
+     * @return 本次访问被抽中，并且key是热点
+     */
+    public boolean record(String keyPrefix, String key) {
+        if (!enabled || sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return false;
+        }
+        long hash = hash(key);
+        AtomicIntegerArray sketch = sketches[current];
+        for (int row = 0; row < DEPTH; row++) {
+            sketch.incrementAndGet(index(hash, row));
+        }
+        long count = estimate(hash);
+        if (count * 2 >= threshold && candidates.size() < MAX_CANDIDATES) {
+            candidates.putIfAbsent(key, keyPrefix);
+        }
+        return count >= threshold;
+    }
+
+    public boolean isHot(String key) {
+        return enabled && estimate(hash(key)) >= threshold;
+    }
+
+    /**
+     * 窗口向前滑动一段：清空最旧的一段，之后的访问记录在其中。候选列表中访问次数已经下降的key被移除
+     */
+    @Scheduled(fixedRateString = "${hmdp.cache.hot-key.slide-ms:2000}")
+    public void slide() {
+        int next = (current + 1) % BUCKETS;
+        AtomicIntegerArray sketch = sketches[next];
+        for (int i = 0; i < sketch.length(); i++) {
+            sketch.set(i, 0);
+        }
+        current = next;
+        candidates.keySet().removeIf(key -> estimate(hash(key)) * 2 < threshold);
+    }
+
+    /**
+     * 各前缀访问次数最多的key
+     * @return 前缀 -> [{key, count}]，count是窗口内访问次数的估计值，按count从大到小
+     */
+    public Map<String, List<Map<String, Object>>> topK() {
+        Map<String, List<Map<String, Object>>> result = new TreeMap<>();
+        candidates.forEach((key, prefix) -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("key", key);
+            item.put("count", estimate(hash(key)));
+            result.computeIfAbsent(prefix, p -> new ArrayList<>()).add(item);
+        });
+        result.values().forEach(items -> {
+            items.sort((a, b) -> Long.compare((Long) b.get("count"), (Long) a.get("count")));
+            if (items.size() > topK) {
+                items.subList(topK, items.size()).clear();
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 窗口内访问次数的估计值：各段取各行的最小值再相加，乘以抽样比例
+     */
+    private long estimate(long hash) {
+        long total = 0;
+        for (AtomicIntegerArray sketch : sketches) {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, sketch.get(index(hash, row)));
+            }
+            total += min;
+        }
+        return total * sampleRate;
+    }
+
+    private static int index(long hash, int row) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return row * WIDTH + ((h1 + row * h2) & (WIDTH - 1));
+    }
+
+    /**
+     * MurmurHash3的64位混合函数
+     */
+    private static long hash(String key) {
+        long x = key.hashCode() * 0x9E3779B97F4A7C15L;
+        x ^= x >>> 33;
+        x *= 0xFF51AFD7ED558CCDL;
+        x ^= x >>> 33;
+        x *= 0xC4CEB93E7FE4A447L;
+        x ^= x >>> 33;
+        return x;
+    }
+}
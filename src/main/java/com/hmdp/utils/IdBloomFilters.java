@@ -0,0 +1,430 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.util.StrUtil;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.mapper.UserMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 各实体已存在id的布隆过滤器，防止用随机id穿透缓存。
+ * <p>
+ * 过滤器以bitmap保存在Redis的 bloom:{实体名} 中，参数和已插入个数保存在 bloom:{实体名}:meta（同一个hash tag），每个节点在本地保留一份副本，
+ * 查询时只读本地副本。启动时Redis中没有可用的过滤器则分批扫描表中的id重建；新增数据时由写入的节点SETBIT并发布消息，
+ * 其他节点更新本地副本。本地副本尚未加载完成时新增的id先暂存，加载完成后补上。
+ * 定时检查已插入个数对应的误判率，超过上限时按当前数据量的两倍重新创建；另外每隔一段时间重建一次，补上直接写入数据库的id。
+ * <p>
+ * 重建时bitmap和参数通过脚本同时替换；SETBIT也通过脚本执行，参数与计算位置时不一致（期间被重建）时按新的参数重新计算
+ * <p>
+ * 过滤器尚未加载完成、或者查询的key前缀没有对应的过滤器时，一律视为可能存在
+ */
+@Slf4j
+@Component
+public class IdBloomFilters {
+
+    private static final int PAGE_SIZE = 10000;
+    private static final long MIN_EXPECTED = 10000;
+    private static final long REBUILD_LOCK_MINUTES = 10;
+    private static final String RELOAD = "reload";
+    /**
+     * 本地副本加载完成前最多暂存的新增id数，超过时丢弃（重建时会从表中扫描到）
+     */
+    private static final int MAX_PENDING = 10000;
+    private static final String ID_PREFIX = UUID.randomUUID().toString(true) + "-";
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+    private static final DefaultRedisScript<Long> SWAP_SCRIPT;
+    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
+    static {
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+        SWAP_SCRIPT = new DefaultRedisScript<>();
+        SWAP_SCRIPT.setLocation(new ClassPathResource("bloom_swap.lua"));
+        SWAP_SCRIPT.setResultType(Long.class);
+        UNLOCK_SCRIPT = new DefaultRedisScript<>();
+        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        UNLOCK_SCRIPT.setResultType(Long.class);
+    }
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    private final boolean enabled;
+    private final double maxFpp;
+    /**
+     * 定期重建的间隔，0为只在误判率超过上限时重建
+     */
+    private final long rebuildIntervalMs;
+    /**
+     * 实体名 -> 过滤器
+     */
+    private final Map<String, Filter> filters = new LinkedHashMap<>();
+    /**
+     * 缓存key前缀 -> 过滤器
+     */
+    private final Map<String, Filter> filtersByPrefix = new HashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bloom-filter-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public IdBloomFilters(StringRedisTemplate stringRedisTemplate,
+                          RedisMessageListenerContainer redisMessageListenerContainer,
+                          ShopMapper shopMapper, UserMapper userMapper,
+                          @Value("${hmdp.bloom.enabled:true}") boolean enabled,
+                          @Value("${hmdp.bloom.max-fpp:0.01}") double maxFpp,
+                          @Value("${hmdp.bloom.rebuild-interval-ms:86400000}") long rebuildIntervalMs) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.enabled = enabled;
+        this.maxFpp = maxFpp;
+        this.rebuildIntervalMs = rebuildIntervalMs;
+        register("shop", CACHE_SHOP_KEY, shopMapper);
+        register("user", CACHE_USER_KEY, userMapper);
+    }
+
+    private void register(String name, String keyPrefix, BaseMapper<?> mapper) {
+        Filter filter = new Filter(name, mapper);
+        filters.put(name, filter);
+        filtersByPrefix.put(keyPrefix, filter);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        //其他节点新增数据或重建过滤器时，更新本地副本。消息格式：实体:id 或 实体:reload
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String body = new String(message.getBody(), StandardCharsets.UTF_8);
+            Filter filter = filters.get(StrUtil.subBefore(body, ":", false));
+            String value = StrUtil.subAfter(body, ":", false);
+            if (filter == null) {
+                return;
+            }
+            if (RELOAD.equals(value)) {
+                loader.submit(() -> load(filter));
+            } else {
+                putLocal(filter, Long.parseLong(value));
+                filter.count.incrementAndGet();
+            }
+        }, new ChannelTopic(BLOOM_CHANNEL));
+    }
+
+    /**
+     * 应用启动完成后在后台加载，加载完成前查询不会被拦截
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadAll() {
+        if (!enabled) {
+            return;
+        }
+        for (Filter filter : filters.values()) {
+            loader.submit(() -> {
+                if (!load(filter)) {
+                    rebuild(filter);
+                }
+            });
+        }
+    }
+
+    /**
+     * 判断缓存key前缀对应实体的id是否可能存在
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        Filter filter = filtersByPrefix.get(keyPrefix);
+        if (filter == null || !(id instanceof Long)) {
+            return true;
+        }
+        BloomFilter local = filter.local;
+        if (local == null || local.mightContain((Long) id)) {
+            return true;
+        }
+        rejected.increment();
+        return false;
+    }
+
+    /**
+     * 新增数据后调用，写入Redis并通知其他节点。本地副本尚未加载完成时按Redis中的参数写入，
+     * 保证之后加载Redis中过滤器的节点不会拦截该id
+     */
+    public void add(String name, Long id) {
+        Filter filter = filters.get(name);
+        if (!enabled || filter == null || id == null) {
+            return;
+        }
+        putLocal(filter, id);
+        //1.按本地副本的参数写入Redis；Redis中的过滤器已被重建（或本地副本尚未加载）时按Redis中的参数重新计算，
+        //  Redis中还没有过滤器时只通知，之后的重建会从表中扫描到该id
+        List<String> keys = Arrays.asList(bitmapKey(name), metaKey(name));
+        BloomFilter local = filter.local;
+        long bitSize = local == null ? 0 : local.bitSize();
+        long[] offsets = local == null ? null : local.offsets(id);
+        for (int i = 0; i < 2; i++) {
+            if (offsets == null) {
+                List<Object> meta = stringRedisTemplate.opsForHash().multiGet(metaKey(name), Arrays.asList("bits", "hashes"));
+                if (meta.get(0) == null || meta.get(1) == null) {
+                    break;
+                }
+                bitSize = Long.parseLong((String) meta.get(0));
+                offsets = BloomFilter.offsets(id, bitSize, Integer.parseInt((String) meta.get(1)));
+            }
+            Long added = stringRedisTemplate.execute(ADD_SCRIPT, keys, toArgs(bitSize, offsets));
+            if (added != null && added == 1) {
+                break;
+            }
+            offsets = null;
+        }
+        //2.通知其他节点
+        stringRedisTemplate.convertAndSend(BLOOM_CHANNEL, name + ":" + id);
+    }
+
+    private static Object[] toArgs(long bitSize, long[] offsets) {
+        Object[] args = new Object[offsets.length + 1];
+        args[0] = String.valueOf(bitSize);
+        for (int i = 0; i < offsets.length; i++) {
+            args[i + 1] = String.valueOf(offsets[i]);
+        }
+        return args;
+    }
+
+    /**
+     * 写入本地副本，尚未加载完成时先暂存
+     */
+    private void putLocal(Filter filter, long id) {
+        BloomFilter local = filter.local;
+        if (local != null) {
+            local.put(id);
+            return;
+        }
+        filter.pending.offer(id);
+        //暂存的同时可能刚好加载完成
+        if (filter.local != null) {
+            drainPending(filter);
+        }
+    }
+
+    /**
+     * 本地副本加载或重建完成后，补上加载期间新增的id
+     */
+    private void drainPending(Filter filter) {
+        BloomFilter local = filter.local;
+        Long id;
+        while ((id = filter.pending.poll()) != null) {
+            local.put(id);
+        }
+    }
+
+    /**
+     * 定时检查：误判率超过上限或距离上次重建超过间隔时重建；错过了重建消息的节点重新加载
+     */
+    @Scheduled(initialDelay = 60000, fixedDelayString = "${hmdp.bloom.check-interval-ms:600000}")
+    public void check() {
+        if (!enabled) {
+            return;
+        }
+        for (Filter filter : filters.values()) {
+            Map<Object, Object> meta = stringRedisTemplate.opsForHash().entries(metaKey(filter.name));
+            if (meta.isEmpty()) {
+                loader.submit(() -> rebuild(filter));
+                continue;
+            }
+            long count = Long.parseLong((String) meta.get("count"));
+            if (filter.local != null && filter.local.expectedFpp(count) > maxFpp) {
+                log.info("布隆过滤器{}已插入{}个元素，误判率{}超过上限，重建", filter.name, count, filter.local.expectedFpp(count));
+                loader.submit(() -> rebuild(filter));
+            } else if (rebuildIntervalMs > 0
+                    && System.currentTimeMillis() - Long.parseLong((String) meta.get("version")) >= rebuildIntervalMs) {
+                //版本号是上次重建的开始时间，多个节点中先检查到的一个重建
+                loader.submit(() -> rebuild(filter));
+            } else if (!Objects.equals(meta.get("version"), filter.version)) {
+                loader.submit(() -> load(filter));
+            }
+        }
+    }
+
+    /**
+     * 各过滤器的大小、元素个数和误判率，以及拦截的次数
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Filter filter : filters.values()) {
+            BloomFilter local = filter.local;
+            if (local == null) {
+                stats.put(filter.name, "loading");
+                continue;
+            }
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("bits", local.bitSize());
+            item.put("hashes", local.hashes());
+            item.put("count", filter.count.get());
+            item.put("expectedFpp", local.expectedFpp(filter.count.get()));
+            stats.put(filter.name, item);
+        }
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+
+    @PreDestroy
+    public void close() {
+        loader.shutdownNow();
+    }
+
+    /**
+     * 从Redis加载过滤器到本地
+     * @return Redis中没有可用的过滤器（不存在或误判率超过上限）时返回false
+     */
+    private boolean load(Filter filter) {
+        byte[] key = bitmapKey(filter.name).getBytes(StandardCharsets.UTF_8);
+        Map<Object, Object> meta;
+        byte[] bytes;
+        //读取参数和bitmap之间被重建时重新读取
+        do {
+            meta = stringRedisTemplate.opsForHash().entries(metaKey(filter.name));
+            if (meta.isEmpty()) {
+                return false;
+            }
+            bytes = stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(key));
+            if (bytes == null) {
+                return false;
+            }
+        } while (!Objects.equals(meta.get("version"), stringRedisTemplate.opsForHash().get(metaKey(filter.name), "version")));
+        long bits = Long.parseLong((String) meta.get("bits"));
+        int hashes = Integer.parseInt((String) meta.get("hashes"));
+        long count = Long.parseLong((String) meta.get("count"));
+        BloomFilter local = BloomFilter.fromBytes(bytes, bits, hashes);
+        filter.local = local;
+        filter.count.set(count);
+        filter.version = (String) meta.get("version");
+        drainPending(filter);
+        log.info("加载布隆过滤器{}，{}位，{}个元素", filter.name, bits, count);
+        return local.expectedFpp(count) <= maxFpp;
+    }
+
+    /**
+     * 扫描全表重建过滤器，同一时间只有一个节点执行，完成后通知其他节点重新加载
+     */
+    private void rebuild(Filter filter) {
+        String lockKey = LOCK_BLOOM_KEY + filter.name;
+        String lockValue = ID_PREFIX + Thread.currentThread().getId();
+        Boolean locked = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, lockValue, REBUILD_LOCK_MINUTES, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(locked)) {
+            return;
+        }
+        try {
+            long begin = System.currentTimeMillis();
+            //1.按当前数据量的两倍预留容量，重建之前还能继续插入
+            long total = filter.mapper.selectCount(null);
+            BloomFilter bloom = BloomFilter.create(Math.max(total * 2, MIN_EXPECTED), maxFpp);
+            //2.按id分批读取
+            long lastId = 0;
+            long count = 0;
+            List<Long> ids;
+            do {
+                ids = nextIds(filter, lastId);
+                for (Long id : ids) {
+                    bloom.put(id);
+                }
+                count += ids.size();
+                if (!ids.isEmpty()) {
+                    lastId = ids.get(ids.size() - 1);
+                }
+            } while (ids.size() == PAGE_SIZE);
+            //3.写入临时key后，用脚本同时替换bitmap和参数。替换前的新增数据id更大，替换后补上
+            String tmpKey = bitmapKey(filter.name) + ":tmp";
+            byte[] bytes = bloom.toBytes();
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                connection.set(tmpKey.getBytes(StandardCharsets.UTF_8), bytes);
+                return null;
+            });
+            String version = String.valueOf(begin);
+            stringRedisTemplate.execute(SWAP_SCRIPT, Arrays.asList(tmpKey, bitmapKey(filter.name), metaKey(filter.name)),
+                    String.valueOf(bloom.bitSize()), String.valueOf(bloom.hashes()), String.valueOf(count), version);
+            filter.local = bloom;
+            filter.count.set(count);
+            filter.version = version;
+            drainPending(filter);
+            for (Long id : nextIds(filter, lastId)) {
+                add(filter.name, id);
+            }
+            //4.通知其他节点重新加载
+            stringRedisTemplate.convertAndSend(BLOOM_CHANNEL, filter.name + ":" + RELOAD);
+            log.info("重建布隆过滤器{}完成，{}位，{}个元素，耗时{}ms",
+                    filter.name, bloom.bitSize(), count, System.currentTimeMillis() - begin);
+        } catch (Exception e) {
+            log.error("重建布隆过滤器{}失败", filter.name, e);
+        } finally {
+            //只释放自己的锁，重建超过锁的有效期时可能已经被其他节点获取
+            stringRedisTemplate.execute(UNLOCK_SCRIPT, Collections.singletonList(lockKey), lockValue);
+        }
+    }
+
+    /**
+     * bitmap、参数和重建时的临时key使用同一个hash tag，集群模式下可以在一个脚本中操作
+     */
+    private static String bitmapKey(String name) {
+        return BLOOM_KEY + "{" + name + "}";
+    }
+
+    private static String metaKey(String name) {
+        return bitmapKey(name) + ":meta";
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Long> nextIds(Filter filter, long lastId) {
+        List<Object> objs = filter.mapper.selectObjs(new QueryWrapper<>()
+                .select("id").gt("id", lastId).orderByAsc("id").last("limit " + PAGE_SIZE));
+        List<Long> ids = new ArrayList<>(objs.size());
+        for (Object obj : objs) {
+            ids.add(((Number) obj).longValue());
+        }
+        return ids;
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static class Filter {
+        private final String name;
+        private final BaseMapper mapper;
+        private volatile BloomFilter local;
+        private final AtomicLong count = new AtomicLong();
+        private volatile String version;
+        /**
+         * 本地副本加载完成前新增的id
+         */
+        private final BlockingQueue<Long> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+
+        Filter(String name, BaseMapper<?> mapper) {
+            this.name = name;
+            this.mapper = mapper;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSON;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * JSON格式，与原来直接写入JSON字符串的格式相同：
+ * 没有逻辑过期时间时是对象本身的JSON，有逻辑过期时间时是RedisData的JSON。
+ * 不记录key的过期时间和加载耗时，不支持提前刷新。
+ * <p>
+ * 值可以是JSON数组（集合、数组）：数组类型按元素类型读取；集合没有元素类型，对象元素读取为JSONObject
+ */
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public byte[] encode(Object value, long expireAt, boolean logical, long loadMillis) {
+        //原来的格式中没有位置记录key的过期时间和加载耗时
+        if (!logical || expireAt == NO_EXPIRE) {
+            return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+        }
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(expireAt), ZoneId.systemDefault()));
+        return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <R> R decode(byte[] bytes, Class<R> type) {
+        JSON json = JSONUtil.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (isRedisData(json)) {
+            return toBean((JSON) ((JSONObject) json).get("data"), type);
+        }
+        return toBean(json, type);
+    }
+
+    /**
+     * 对象和数组都可以转换，BinaryCacheCodec写成JSON的值也由这里读取
+     */
+    static <R> R toBean(JSON json, Class<R> type) {
+        if (json instanceof JSONArray) {
+            JSONArray array = (JSONArray) json;
+            return type.isArray() ? type.cast(array.toArray(type.getComponentType())) : array.toBean(type);
+        }
+        return JSONUtil.toBean((JSONObject) json, type);
+    }
+
+    @Override
+    public long expireAt(byte[] bytes) {
+        JSON json = JSONUtil.parse(new String(bytes, StandardCharsets.UTF_8));
+        if (!isRedisData(json)) {
+            return NO_EXPIRE;
+        }
+        LocalDateTime expireTime = json.toBean(RedisData.class).getExpireTime();
+        return expireTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Override
+    public long refreshAt(byte[] bytes) {
+        return expireAt(bytes);
+    }
+
+    @Override
+    public long loadMillis(byte[] bytes) {
+        return 0;
+    }
+
+    private static boolean isRedisData(JSON json) {
+        if (!(json instanceof JSONObject)) {
+            return false;
+        }
+        JSONObject object = (JSONObject) json;
+        return object.size() == 2 && object.containsKey("expireTime") && object.containsKey("data");
+    }
+}
@@ -0,0 +1,98 @@
+package com.hmdp.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 对数线性分桶的延迟直方图（HdrHistogram的分桶方式），单位纳秒。
+ * <p>
+ * 每个2的幂区间再均分为16个桶，分位数的相对误差不超过1/16；记录一次只是几次原子加法，不加锁、不分配内存。
+ * 超过2^44纳秒（约4.9小时）的值计入最后一个桶
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 44;
+
+    private final AtomicLongArray counts = new AtomicLongArray((MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // 重试直到更新成功或其他线程写入了更大的值
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return 第p分位所在桶的上界，纳秒
+     */
+    public long percentile(double p) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seen += snapshot[i];
+            if (seen >= target) {
+                return Math.min(lowerBound(i + 1) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * 次数、平均值和常用分位数，单位微秒
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        long n = count.sum();
+        snapshot.put("count", n);
+        snapshot.put("meanUs", n == 0 ? 0 : sum.sum() / n / 1000.0);
+        snapshot.put("p50Us", percentile(0.5) / 1000.0);
+        snapshot.put("p90Us", percentile(0.9) / 1000.0);
+        snapshot.put("p99Us", percentile(0.99) / 1000.0);
+        snapshot.put("p999Us", percentile(0.999) / 1000.0);
+        snapshot.put("maxUs", max.get() / 1000.0);
+        return snapshot;
+    }
+
+    private int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return Math.min((exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub, counts.length() - 1);
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = index % SUB_BUCKETS;
+        return 1L << exponent | (long) sub << (exponent - SUB_BUCKET_BITS);
+    }
+}
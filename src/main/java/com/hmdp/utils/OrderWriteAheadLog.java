@@ -0,0 +1,204 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 秒杀订单的预写日志（单节点模式）。
+ * <p>
+ * Lua脚本扣减库存成功后，订单先追加到内存映射的日志文件中再返回给用户，消费线程从检查点开始读取日志批量落库，
+ * 落库后推进检查点，检查点之前的日志文件整个删除。追加只是一次内存写入，进程崩溃后数据仍在操作系统的页缓存中，
+ * 定时force刷盘限制了机器宕机时可能丢失的范围。
+ * <p>
+ * 每条记录32字节：订单id、用户id、优惠券id、校验值，各8字节。日志文件预先分配并以0填充，
+ * 校验值不匹配的位置即为日志末尾。第n条记录位于第 n / recordsPerSegment 个文件中。
+ */
+@Slf4j
+public class OrderWriteAheadLog implements Closeable {
+
+    private static final int RECORD_SIZE = 32;
+    private static final long MAGIC = 0x5345434B494C4CL;
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private final Path dir;
+    private final int recordsPerSegment;
+    private final MappedByteBuffer checkpointBuffer;
+
+    /**
+     * 写入位置，只在append中修改
+     */
+    private long nextSeq;
+    private long writeSegment = -1;
+    private MappedByteBuffer writeBuffer;
+    /**
+     * 已经完整写入、可以被读取的记录数
+     */
+    private volatile long committedSeq;
+
+    /**
+     * 读取位置，只由消费线程访问
+     */
+    private long readSegment = -1;
+    private MappedByteBuffer readBuffer;
+    private volatile long checkpointSeq;
+
+    public OrderWriteAheadLog(Path dir, int recordsPerSegment) throws IOException {
+        this.dir = dir;
+        this.recordsPerSegment = recordsPerSegment;
+        Files.createDirectories(dir);
+        //1.读取检查点
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve(CHECKPOINT_FILE).toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            checkpointBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Long.BYTES);
+        }
+        checkpointSeq = checkpointBuffer.getLong(0);
+        //2.从检查点开始向后找到第一条无效记录，即为写入位置
+        long seq = checkpointSeq;
+        while (Files.exists(segmentPath(seq / recordsPerSegment)) && readRecord(seq, null)) {
+            seq++;
+        }
+        nextSeq = seq;
+        committedSeq = seq;
+        if (nextSeq > checkpointSeq) {
+            log.info("预写日志中有{}条订单尚未落库，将从检查点{}开始重放", nextSeq - checkpointSeq, checkpointSeq);
+        }
+    }
+
+    /**
+     * 追加一条订单记录，调用返回后即使进程崩溃订单也不会丢失
+     */
+    public synchronized void append(long orderId, long userId, long voucherId) {
+        long segment = nextSeq / recordsPerSegment;
+        if (segment != writeSegment) {
+            writeBuffer = map(segment);
+            writeSegment = segment;
+        }
+        int offset = (int) (nextSeq % recordsPerSegment) * RECORD_SIZE;
+        writeBuffer.putLong(offset, orderId);
+        writeBuffer.putLong(offset + 8, userId);
+        writeBuffer.putLong(offset + 16, voucherId);
+        writeBuffer.putLong(offset + 24, checksum(orderId, userId, voucherId));
+        nextSeq++;
+        // volatile写，保证消费线程看到committedSeq时记录内容已经写完
+        committedSeq = nextSeq;
+    }
+
+    /**
+     * 从fromSeq开始读取最多max条已写入的记录
+     * @return 读取到的条数
+     */
+    public int read(long fromSeq, int max, List<VoucherOrder> out) {
+        long end = Math.min(committedSeq, fromSeq + max);
+        int count = 0;
+        for (long seq = fromSeq; seq < end; seq++) {
+            VoucherOrder voucherOrder = new VoucherOrder();
+            if (!readRecord(seq, voucherOrder)) {
+                break;
+            }
+            out.add(voucherOrder);
+            count++;
+        }
+        return count;
+    }
+
+    public long committedSeq() {
+        return committedSeq;
+    }
+
+    public long checkpointSeq() {
+        return checkpointSeq;
+    }
+
+    /**
+     * seq之前的记录已经全部落库：推进检查点，删除不再需要的日志文件
+     */
+    public void checkpoint(long seq) {
+        long oldSegment = checkpointSeq / recordsPerSegment;
+        checkpointBuffer.putLong(0, seq);
+        checkpointBuffer.force();
+        checkpointSeq = seq;
+        for (long segment = oldSegment; segment < seq / recordsPerSegment; segment++) {
+            try {
+                Files.deleteIfExists(segmentPath(segment));
+            } catch (IOException e) {
+                log.warn("删除预写日志文件失败，segment = {}", segment, e);
+            }
+        }
+    }
+
+    /**
+     * 把当前日志文件刷到磁盘
+     */
+    public synchronized void force() {
+        if (writeBuffer != null) {
+            writeBuffer.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+        checkpointBuffer.force();
+    }
+
+    private boolean readRecord(long seq, VoucherOrder out) {
+        long segment = seq / recordsPerSegment;
+        if (segment != readSegment) {
+            readBuffer = map(segment);
+            readSegment = segment;
+        }
+        int offset = (int) (seq % recordsPerSegment) * RECORD_SIZE;
+        long orderId = readBuffer.getLong(offset);
+        long userId = readBuffer.getLong(offset + 8);
+        long voucherId = readBuffer.getLong(offset + 16);
+        if (readBuffer.getLong(offset + 24) != checksum(orderId, userId, voucherId)) {
+            return false;
+        }
+        if (out != null) {
+            out.setId(orderId);
+            out.setUserId(userId);
+            out.setVoucherId(voucherId);
+        }
+        return true;
+    }
+
+    private MappedByteBuffer map(long segment) {
+        try (RandomAccessFile file = new RandomAccessFile(segmentPath(segment).toFile(), "rw");
+             FileChannel channel = file.getChannel()) {
+            // 映射在通道关闭后仍然有效
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) recordsPerSegment * RECORD_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("映射预写日志文件失败，segment = " + segment, e);
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return dir.resolve(String.format("%020d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private static long checksum(long orderId, long userId, long voucherId) {
+        return MAGIC ^ orderId ^ Long.rotateLeft(userId, 21) ^ Long.rotateLeft(voucherId, 42);
+    }
+
+    /**
+     * 日志目录中现有的日志文件数，用于监控
+     */
+    public long segmentCount() {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> p.toString().endsWith(SEGMENT_SUFFIX)).count();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 接口限流，由 RateLimitInterceptor 执行：
+ * 先用本地令牌桶做节点级削峰，再用Redis滑动窗口按用户、IP或路径变量做集群级限流。
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface RateLimit {
+
+    enum KeyType {
+        /** 按登录用户限流，未登录时按IP */
+        USER,
+        /** 按客户端IP限流 */
+        IP,
+        /** 按路径变量限流，例如同一篇博客的点赞 */
+        PATH_VARIABLE
+    }
+
+    /**
+     * 本节点每秒允许通过的请求数，小于等于0表示不做本地限流
+     */
+    double qps() default 0;
+
+    /**
+     * 本地令牌桶允许的突发请求数
+     */
+    int burst() default 1;
+
+    /**
+     * 集群限流的维度
+     */
+    KeyType keyType() default KeyType.USER;
+
+    /**
+     * keyType为PATH_VARIABLE时使用的路径变量名
+     */
+    String variable() default "id";
+
+    /**
+     * 每个维度在window秒内允许的请求数，小于等于0表示不做集群限流
+     */
+    int limit() default 0;
+
+    /**
+     * 滑动窗口大小，单位秒
+     */
+    int window() default 1;
+}
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.Validator;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.dto.UserDTO;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.hmdp.utils.RedisConstants.RATE_LIMIT_KEY;
+
+public class RateLimitInterceptor implements HandlerInterceptor {
+
+    private static final DefaultRedisScript<Long> LIMIT_SCRIPT;
+    static {
+        LIMIT_SCRIPT = new DefaultRedisScript<>();
+        LIMIT_SCRIPT.setLocation(new ClassPathResource("limit.lua"));
+        LIMIT_SCRIPT.setResultType(Long.class);
+    }
+    /**
+     * 被限流时直接写出的响应体，避免每次序列化
+     */
+    private static final byte[] REJECTED = "{\"success\":false,\"errorMsg\":\"请求过于频繁，请稍后再试\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    /**
+     * 可信的反向代理地址（IP或IPv4网段，如10.0.0.0/8），只有请求来自这些地址时才读取X-Forwarded-For
+     */
+    private final String[] trustedProxies;
+    /**
+     * 每个接口一个本地令牌桶
+     */
+    private final Map<Method, TokenBucket> buckets = new ConcurrentHashMap<>();
+
+    public RateLimitInterceptor(StringRedisTemplate stringRedisTemplate, String[] trustedProxies) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.trustedProxies = trustedProxies;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!(handler instanceof HandlerMethod)) {
+            return true;
+        }
+        HandlerMethod handlerMethod = (HandlerMethod) handler;
+        RateLimit rateLimit = handlerMethod.getMethodAnnotation(RateLimit.class);
+        if (rateLimit == null) {
+            return true;
+        }
+        //1.本地令牌桶，不涉及任何网络IO
+        if (rateLimit.qps() > 0) {
+            TokenBucket bucket = buckets.computeIfAbsent(handlerMethod.getMethod(),
+                    m -> new TokenBucket(rateLimit.qps(), rateLimit.burst()));
+            if (!bucket.tryAcquire()) {
+                return reject(response);
+            }
+        }
+        //2.Redis滑动窗口
+        if (rateLimit.limit() > 0) {
+            String key = RATE_LIMIT_KEY + handlerMethod.getBeanType().getSimpleName() + ":"
+                    + handlerMethod.getMethod().getName() + ":" + limitKey(rateLimit, request);
+            Long allowed = stringRedisTemplate.execute(LIMIT_SCRIPT, Collections.singletonList(key),
+                    String.valueOf(rateLimit.window() * 1000L), String.valueOf(rateLimit.limit()),
+                    Long.toHexString(ThreadLocalRandom.current().nextLong()));
+            if (allowed == null || allowed == 0) {
+                return reject(response);
+            }
+        }
+        return true;
+    }
+
+    private String limitKey(RateLimit rateLimit, HttpServletRequest request) {
+        switch (rateLimit.keyType()) {
+            case USER:
+                UserDTO user = UserHolder.getUser();
+                if (user != null) {
+                    return "user:" + user.getId();
+                }
+                return "ip:" + clientIp(request);
+            case PATH_VARIABLE:
+                @SuppressWarnings("unchecked")
+                Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+                return rateLimit.variable() + ":" + (variables == null ? "" : variables.get(rateLimit.variable()));
+            case IP:
+            default:
+                return "ip:" + clientIp(request);
+        }
+    }
+
+    /**
+     * 客户端IP。X-Forwarded-For可以由客户端任意伪造，只有直接连接的是可信代理时才读取，
+     * 并从右往左取第一个不是可信代理的地址
+     */
+    private String clientIp(HttpServletRequest request) {
+        String ip = request.getRemoteAddr();
+        if (!isTrustedProxy(ip)) {
+            return ip;
+        }
+        String forwarded = request.getHeader("X-Forwarded-For");
+        if (StrUtil.isBlank(forwarded)) {
+            return ip;
+        }
+        List<String> hops = StrUtil.split(forwarded, ',', true, true);
+        for (int i = hops.size() - 1; i >= 0; i--) {
+            ip = hops.get(i);
+            if (!isTrustedProxy(ip)) {
+                return ip;
+            }
+        }
+        //全部是可信代理，取最左边的地址
+        return ip;
+    }
+
+    private boolean isTrustedProxy(String ip) {
+        for (String proxy : trustedProxies) {
+            if (proxy.contains("/")) {
+                if (Validator.isIpv4(ip) && NetUtil.isInRange(ip, proxy)) {
+                    return true;
+                }
+            } else if (proxy.equals(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean reject(HttpServletResponse response) throws Exception {
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.setContentLength(REJECTED.length);
+        response.getOutputStream().write(REJECTED);
+        return false;
+    }
+}
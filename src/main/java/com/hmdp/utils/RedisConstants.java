@@ -10,13 +10,36 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_SHOP_TYPE_VERSION_KEY = "cache:shopType:version";
+    public static final String RESPONSE_CACHE_CHANNEL = "cache:response:invalidate";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:cache:";
+    public static final Long LOCK_CACHE_TTL = 3000L;
+    public static final Long LOCK_REBUILD_TTL = 10000L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_META_KEY = "seckill:meta:";
+    public static final String SECKILL_SEGMENTS_KEY = "seckill:segments:";
+    public static final String SECKILL_ORDER_STREAM = "stream.orders:";
+    public static final String SECKILL_STREAM_SEGMENTS_KEY = "seckill:streams";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    public static final Long SECKILL_STATUS_TTL = 30L;
+    public static final String SECKILL_STATUS_CHANNEL = "seckill:status";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
     public static final String USER_SIGN_KEY = "sign:";
+    public static final String RATE_LIMIT_KEY = "limit:";
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_CHANNEL = "bloom:add";
+    public static final String LOCK_BLOOM_KEY = "lock:bloom:";
 }
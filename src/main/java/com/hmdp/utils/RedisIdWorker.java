@@ -1,14 +1,27 @@
 package com.hmdp.utils;
 
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.EnvironmentAware;
+import org.springframework.core.env.Environment;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+@Slf4j
 @Component
-public class RedisIdWorker {
+public class RedisIdWorker implements EnvironmentAware {
     /**
      * 开始时间戳
      */
@@ -17,14 +30,72 @@ public class RedisIdWorker {
      * 序列号的位数
      */
     private static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
+    private static final String MODE_INCR = "incr";
+    private static final String MODE_SEGMENT = "segment";
+    private static final String MODE_SNOWFLAKE = "snowflake";
 
     private StringRedisTemplate stringRedisTemplate;
+    /**
+     * 默认的生成方式，可以通过 hmdp.id.backends.{keyPrefix} 为某个业务单独指定
+     */
+    private final String mode;
+    /**
+     * 号段模式下每次向Redis申请的序列号个数
+     */
+    private final int step;
+    private Environment environment;
+    private final Map<String, String> modes = new ConcurrentHashMap<>();
+    private final Map<String, SegmentAllocator> allocators = new ConcurrentHashMap<>();
+    /**
+     * 雪花算法生成器，整个节点共用一个机器号，第一次使用时才租用
+     */
+    private volatile SnowflakeIdGenerator snowflake;
+    /**
+     * 后台预取下一个号段的线程
+     */
+    private final ExecutorService leaseExecutor;
 
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
+        this(stringRedisTemplate, MODE_INCR, 1000);
+    }
+
+    @Autowired
+    public RedisIdWorker(StringRedisTemplate stringRedisTemplate,
+                         @Value("${hmdp.id.mode:incr}") String mode,
+                         @Value("${hmdp.id.step:1000}") int step) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.mode = mode;
+        this.step = Math.max(step, 1000);
+        this.leaseExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "id-segment-lease");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * id中的时间戳部分，与nextId使用同一套秒数，可用来判断id生成了多久
+     */
+    public static long epochSecondOf(long id) {
+        return (id >>> COUNT_BITS) + BEGIN_TIMESTAMP;
     }
 
     public long nextId(String keyPrefix) {
+        String backend = modes.computeIfAbsent(keyPrefix, this::modeOf);
+        if (MODE_SEGMENT.equals(backend)) {
+            return allocators.computeIfAbsent(keyPrefix, SegmentAllocator::new).nextId();
+        }
+        if (MODE_SNOWFLAKE.equals(backend)) {
+            return snowflake().nextId();
+        }
         // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
@@ -32,11 +103,120 @@ public class RedisIdWorker {
 
         // 2.生成序列号
         // 2.1.获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
+        String date = now.format(DATE_FORMATTER);
         // 2.2.自增长
         long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
 
         // 3.拼接并返回
         return timestamp << COUNT_BITS | count;
     }
-}
\ No newline at end of file
+
+    private String modeOf(String keyPrefix) {
+        return environment == null ? mode : environment.getProperty("hmdp.id.backends." + keyPrefix, mode);
+    }
+
+    private SnowflakeIdGenerator snowflake() {
+        if (snowflake == null) {
+            synchronized (this) {
+                if (snowflake == null) {
+                    long leaseMillis = environment == null ? 30000L
+                            : environment.getProperty("hmdp.id.worker-lease-ms", Long.class, 30000L);
+                    snowflake = new SnowflakeIdGenerator(stringRedisTemplate, leaseMillis);
+                }
+            }
+        }
+        return snowflake;
+    }
+
+    @PreDestroy
+    public void close() {
+        leaseExecutor.shutdownNow();
+        if (snowflake != null) {
+            snowflake.close();
+        }
+    }
+
+    /**
+     * 一段已申请到的序列号 [next, end]，只能在申请时的那一天使用
+     */
+    private static class Segment {
+        private final long day;
+        private long next;
+        private final long end;
+
+        Segment(long day, long next, long end) {
+            this.day = day;
+            this.next = next;
+            this.end = end;
+        }
+    }
+
+    /**
+     * 号段模式：用INCRBY一次申请step个序列号，在本地依次发放；当前号段用掉80%时在后台预取下一段（双缓冲），
+     * 正常情况下nextId不访问网络。
+     * 仍使用按天自增的key，不同节点申请到的号段互不重叠，id格式与逐个INCR时相同。
+     * 时间戳取本节点发放过的最大值，时钟回拨时不会变小，因此同一节点发放的id严格递增
+     */
+    private class SegmentAllocator {
+
+        private final String keyPrefix;
+        private long lastSecond;
+        private long cachedDay = -1;
+        private String cachedKey;
+        private Segment current;
+        private CompletableFuture<Segment> prefetch;
+
+        SegmentAllocator(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        synchronized long nextId() {
+            // 1.生成时间戳，不小于上一次的时间戳
+            long second = Math.max(LocalDateTime.now().toEpochSecond(ZoneOffset.UTC), lastSecond);
+            lastSecond = second;
+            long day = second / SECONDS_PER_DAY;
+
+            // 2.当前号段用完或已经跨天，切换到预取的号段
+            if (current == null || current.day != day || current.next > current.end) {
+                current = takePrefetched(day);
+            }
+            long count = current.next++;
+            // 3.剩余不足20%时预取下一段
+            if (prefetch == null && current.end - current.next < step / 5) {
+                String key = key(day);
+                prefetch = CompletableFuture.supplyAsync(() -> lease(day, key), leaseExecutor);
+            }
+            return (second - BEGIN_TIMESTAMP) << COUNT_BITS | count;
+        }
+
+        private Segment takePrefetched(long day) {
+            CompletableFuture<Segment> future = prefetch;
+            prefetch = null;
+            if (future != null) {
+                try {
+                    Segment segment = future.join();
+                    // 跨天后前一天的号段作废，否则会与当天其他节点申请的序列号重复
+                    if (segment.day == day) {
+                        return segment;
+                    }
+                } catch (Exception e) {
+                    log.warn("预取id号段失败，改为同步申请，keyPrefix = {}", keyPrefix, e);
+                }
+            }
+            return lease(day, key(day));
+        }
+
+        private Segment lease(long day, String key) {
+            Long end = stringRedisTemplate.opsForValue().increment(key, step);
+            return new Segment(day, end - step + 1, end);
+        }
+
+        private String key(long day) {
+            if (day != cachedDay) {
+                cachedKey = "icr:" + keyPrefix + ":" + LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+                cachedDay = day;
+            }
+            return cachedKey;
+        }
+    }
+}
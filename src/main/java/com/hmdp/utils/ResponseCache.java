@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 缓存GET接口序列化之后的响应内容，由 ResponseCacheInterceptor 和 ResponseCacheAdvice 执行：
+ * 命中时直接写出缓存的内容，不执行接口；客户端带上次的ETag且内容未变化时返回304。
+ * 只缓存成功的Result，响应内容不能因登录用户而不同。
+ * 数据修改时调用 ResponseCacheManager.evict 按名称和分组清除，所有节点同时生效
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ResponseCache {
+
+    /**
+     * 缓存名称，写操作按名称清除
+     */
+    String value();
+
+    /**
+     * 用于分组的路径变量或请求参数名，写操作可以只清除一组，例如一个店铺的全部响应。为空时只能按名称整体清除
+     */
+    String group() default "";
+
+    /**
+     * 最长缓存时间，单位秒。数据不经过写操作而变化时（例如点赞数、库存）依靠它过期
+     */
+    int ttl() default 60;
+}
@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * 执行@ResponseCache：命中时直接写出缓存的响应内容或返回304，不执行接口；
+ * 未命中时在请求中记录缓存位置和开始时的版本号，由ResponseCacheAdvice在序列化时写入
+ */
+public class ResponseCacheInterceptor implements HandlerInterceptor {
+
+    /**
+     * 未命中时记录在请求中的缓存位置
+     */
+    public static final String PENDING_ATTRIBUTE = ResponseCacheInterceptor.class.getName() + ".pending";
+    public static final String CACHE_CONTROL = "no-cache";
+
+    private final ResponseCacheManager responseCacheManager;
+
+    public ResponseCacheInterceptor(ResponseCacheManager responseCacheManager) {
+        this.responseCacheManager = responseCacheManager;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        if (!(handler instanceof HandlerMethod) || !"GET".equals(request.getMethod())) {
+            return true;
+        }
+        ResponseCache responseCache = ((HandlerMethod) handler).getMethodAnnotation(ResponseCache.class);
+        if (responseCache == null) {
+            return true;
+        }
+        //1.按路径和参数查找缓存的响应
+        String requestKey = request.getQueryString() == null
+                ? request.getRequestURI() : request.getRequestURI() + "?" + request.getQueryString();
+        ResponseCacheManager.Entry entry = responseCacheManager.get(responseCache.value(), requestKey);
+        if (entry != null) {
+            response.setHeader(HttpHeaders.ETAG, entry.getEtag());
+            response.setHeader(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL);
+            //2.客户端的内容仍是最新，返回304
+            if (ETagUtils.matches(request.getHeader(HttpHeaders.IF_NONE_MATCH), entry.getEtag())) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return false;
+            }
+            //3.直接写出缓存的内容
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setContentLength(entry.getBody().length);
+            response.getOutputStream().write(entry.getBody());
+            return false;
+        }
+        //4.未命中，记录开始时的版本号，执行接口
+        request.setAttribute(PENDING_ATTRIBUTE, new Pending(responseCache, requestKey, group(responseCache, request),
+                responseCacheManager.version(responseCache.value())));
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static String group(ResponseCache responseCache, HttpServletRequest request) {
+        if (StrUtil.isBlank(responseCache.group())) {
+            return null;
+        }
+        Map<String, String> variables = (Map<String, String>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        String group = variables == null ? null : variables.get(responseCache.group());
+        return group != null ? group : request.getParameter(responseCache.group());
+    }
+
+    public static class Pending {
+        private final ResponseCache responseCache;
+        private final String requestKey;
+        private final String group;
+        private final long version;
+
+        private Pending(ResponseCache responseCache, String requestKey, String group, long version) {
+            this.responseCache = responseCache;
+            this.requestKey = requestKey;
+            this.group = group;
+            this.version = version;
+        }
+
+        /**
+         * 写入序列化之后的响应内容
+         * @return 响应内容的ETag
+         */
+        public String put(ResponseCacheManager responseCacheManager, byte[] body) {
+            return responseCacheManager.put(responseCache.value(), requestKey, group, version, body, responseCache.ttl());
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.RESPONSE_CACHE_CHANNEL;
+
+/**
+ * 接口响应缓存（@ResponseCache）的存储：缓存名 -> 请求（路径和参数） -> 序列化之后的响应内容和ETag。
+ * <p>
+ * 清除时通过发布订阅通知所有节点。每个缓存名有一个版本号，清除时加一；
+ * 请求开始时记录版本号，写入时版本号已经变化说明期间数据被修改过，不再写入，避免缓存修改前的内容
+ */
+@Slf4j
+@Component
+public class ResponseCacheManager {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+    /**
+     * 每个缓存名最多缓存的响应数，写满时先清除已过期的响应，仍然写满时不再写入新的响应
+     */
+    private final int maxEntries;
+    private final Map<String, Region> regions = new ConcurrentHashMap<>();
+
+    public ResponseCacheManager(StringRedisTemplate stringRedisTemplate,
+                                RedisMessageListenerContainer redisMessageListenerContainer,
+                                @Value("${hmdp.response-cache.max-entries:1000}") int maxEntries) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.redisMessageListenerContainer = redisMessageListenerContainer;
+        this.maxEntries = maxEntries;
+    }
+
+    @PostConstruct
+    public void init() {
+        //其他节点修改数据时，清除本地缓存的响应
+        redisMessageListenerContainer.addMessageListener(
+                (message, pattern) -> evictLocal(new String(message.getBody(), StandardCharsets.UTF_8)),
+                new ChannelTopic(RESPONSE_CACHE_CHANNEL));
+    }
+
+    /**
+     * @return 未命中或已过期时返回null
+     */
+    public Entry get(String name, String requestKey) {
+        Region region = regions.get(name);
+        if (region == null) {
+            return null;
+        }
+        Entry entry = region.entries.get(requestKey);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expireAt <= System.currentTimeMillis()) {
+            region.entries.remove(requestKey, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * 请求开始时的版本号，写入时传回
+     */
+    public long version(String name) {
+        return region(name).version.get();
+    }
+
+    /**
+     * 写入响应内容，期间数据被修改过时只计算ETag，不写入
+     * @return 响应内容的ETag
+     */
+    public String put(String name, String requestKey, String group, long version, byte[] body, int ttlSeconds) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(body, group, now + TimeUnit.SECONDS.toMillis(ttlSeconds));
+        Region region = region(name);
+        if (region.version.get() == version && hasRoom(region, requestKey, now)) {
+            region.entries.put(requestKey, entry);
+            //写入之后再检查一次，期间发生的清除可能没有清除到这一条
+            if (region.version.get() != version) {
+                region.entries.remove(requestKey, entry);
+            }
+        }
+        return entry.etag;
+    }
+
+    /**
+     * 已过期的响应只在读到时删除，写满时扫描一遍清除。
+     * 记录剩余响应中最早的过期时间，之前不再重复扫描
+     */
+    private boolean hasRoom(Region region, String requestKey, long now) {
+        if (region.entries.size() < maxEntries || region.entries.containsKey(requestKey)) {
+            return true;
+        }
+        if (now < region.nextPurgeAt) {
+            return false;
+        }
+        region.entries.values().removeIf(entry -> entry.expireAt <= now);
+        region.nextPurgeAt = region.entries.values().stream()
+                .mapToLong(entry -> entry.expireAt).min().orElse(now);
+        return region.entries.size() < maxEntries;
+    }
+
+    /**
+     * 清除一组响应，例如一个店铺的详情，所有节点生效
+     * @param group 与@ResponseCache的group对应的路径变量或请求参数的值
+     */
+    public void evict(String name, Object group) {
+        String message = name + ":" + group;
+        evictLocal(message);
+        stringRedisTemplate.convertAndSend(RESPONSE_CACHE_CHANNEL, message);
+    }
+
+    /**
+     * 清除一个缓存名下的全部响应，所有节点生效
+     */
+    public void evictAll(String name) {
+        evictLocal(name);
+        stringRedisTemplate.convertAndSend(RESPONSE_CACHE_CHANNEL, name);
+    }
+
+    /**
+     * @param message 缓存名，或 缓存名:分组
+     */
+    private void evictLocal(String message) {
+        int index = message.indexOf(':');
+        String name = index < 0 ? message : message.substring(0, index);
+        Region region = region(name);
+        //先增加版本号，正在执行的请求不会再写入旧的内容
+        region.version.incrementAndGet();
+        if (index < 0) {
+            region.entries.clear();
+        } else {
+            String group = message.substring(index + 1);
+            region.entries.values().removeIf(entry -> group.equals(entry.group));
+        }
+        log.debug("清除接口响应缓存：{}", message);
+    }
+
+    private Region region(String name) {
+        Region region = regions.get(name);
+        return region != null ? region : regions.computeIfAbsent(name, k -> new Region());
+    }
+
+    private static class Region {
+        private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+        private final AtomicLong version = new AtomicLong();
+        /**
+         * 写满时下一次清除过期响应的时间
+         */
+        private volatile long nextPurgeAt;
+    }
+
+    public static class Entry {
+        private final byte[] body;
+        private final String etag;
+        private final String group;
+        private final long expireAt;
+
+        private Entry(byte[] body, String group, long expireAt) {
+            this.body = body;
+            this.etag = ETagUtils.of(body);
+            this.group = group;
+            this.expireAt = expireAt;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+    }
+}
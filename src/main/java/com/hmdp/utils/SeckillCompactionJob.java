@@ -0,0 +1,155 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.service.ISeckillVoucherService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀结束后的购买记录压缩：
+ * 把分段之前的版本写入的 seckill:order:voucherId（用户id字符串的set）改写成以用户id为偏移量的bitmap，
+ * 并给库存、购买记录、元数据等key设置有效期，输出节省的Redis内存。
+ * 分段之后的购买记录本身就是bitmap，只设置有效期
+ */
+@Slf4j
+@Component
+public class SeckillCompactionJob {
+
+    private static final int PIPELINE_SIZE = 10000;
+    /**
+     * MEMORY USAGE key，通过脚本执行以便在集群模式下路由到key所在的节点
+     */
+    private static final DefaultRedisScript<Long> MEMORY_USAGE_SCRIPT =
+            new DefaultRedisScript<>("return redis.call('memory','usage',KEYS[1])", Long.class);
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Value("${hmdp.seckill.compaction.retain-days:7}")
+    private long retainDays;
+
+    @Scheduled(initialDelay = 60000, fixedDelayString = "${hmdp.seckill.compaction.interval-ms:600000}")
+    public void compact() {
+        //1.查询保留期内已结束的秒杀券，更早的key已经过期
+        LocalDateTime now = LocalDateTime.now();
+        List<SeckillVoucher> vouchers = seckillVoucherService.query()
+                .lt("end_time", now).gt("end_time", now.minusDays(retainDays))
+                .list();
+        long saved = 0;
+        for (SeckillVoucher voucher : vouchers) {
+            Long voucherId = voucher.getVoucherId();
+            //2.压缩分段之前的版本写入的购买记录
+            String legacyOrderKey = SECKILL_ORDER_KEY + voucherId;
+            long bytes = compactBuyers(legacyOrderKey);
+            if (bytes > 0) {
+                log.info("优惠券{}的购买记录已压缩为bitmap，节省{}字节", voucherId, bytes);
+                saved += bytes;
+            }
+            expireIfPersistent(legacyOrderKey);
+            expireIfPersistent(SECKILL_STOCK_KEY + voucherId);
+            //3.设置各分段key的有效期
+            String segmentsKey = SECKILL_SEGMENTS_KEY + voucherId;
+            String segments = stringRedisTemplate.opsForValue().get(segmentsKey);
+            int segmentCount = StrUtil.isBlank(segments) ? 1 : Integer.parseInt(segments);
+            for (int i = 0; i < segmentCount; i++) {
+                expireIfPersistent(SeckillKeys.orderKey(voucherId, i));
+                expireIfPersistent(SeckillKeys.stockKey(voucherId, i));
+                expireIfPersistent(SeckillKeys.metaKey(voucherId, i));
+            }
+            expireIfPersistent(segmentsKey);
+        }
+        if (saved > 0) {
+            log.info("本次压缩秒杀购买记录共节省Redis内存{}字节", saved);
+        }
+    }
+
+    /**
+     * 把set改写成bitmap，bitmap更小时才替换（用户id很大且稀疏时bitmap反而更大）
+     * @return 节省的字节数
+     */
+    private long compactBuyers(String orderKey) {
+        if (!"set".equals(typeOf(orderKey))) {
+            return 0;
+        }
+        //1.逐批扫描set写入临时bitmap。分段之前的版本只支持单节点Redis，原key没有hash tag，可以直接RENAME
+        String tmpKey = orderKey + ":bitmap";
+        stringRedisTemplate.delete(tmpKey);
+        List<Long> userIds = new ArrayList<>(PIPELINE_SIZE);
+        try (Cursor<String> cursor = stringRedisTemplate.opsForSet()
+                .scan(orderKey, ScanOptions.scanOptions().count(1000).build())) {
+            while (cursor.hasNext()) {
+                userIds.add(Long.valueOf(cursor.next()));
+                if (userIds.size() >= PIPELINE_SIZE) {
+                    setBits(tmpKey, userIds);
+                    userIds.clear();
+                }
+            }
+        } catch (IOException e) {
+            log.warn("关闭SSCAN游标失败，key = {}", orderKey, e);
+        }
+        setBits(tmpKey, userIds);
+        //2.比较两者的内存占用
+        long before = memoryUsage(orderKey);
+        long after = memoryUsage(tmpKey);
+        if (after >= before) {
+            stringRedisTemplate.delete(tmpKey);
+            return 0;
+        }
+        //3.替换原来的set
+        stringRedisTemplate.rename(tmpKey, orderKey);
+        return before - after;
+    }
+
+    private void setBits(String key, List<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            for (Long userId : userIds) {
+                conn.setBit(key, userId, true);
+            }
+            return null;
+        });
+    }
+
+    private void expireIfPersistent(String key) {
+        Long ttl = stringRedisTemplate.getExpire(key);
+        // -1代表key存在但没有设置有效期
+        if (ttl != null && ttl == -1) {
+            stringRedisTemplate.expire(key, retainDays, TimeUnit.DAYS);
+        }
+    }
+
+    private String typeOf(String key) {
+        return stringRedisTemplate.execute((RedisCallback<String>) connection ->
+                connection.type(key.getBytes(StandardCharsets.UTF_8)).code());
+    }
+
+    private long memoryUsage(String key) {
+        Long bytes = stringRedisTemplate.execute(MEMORY_USAGE_SCRIPT, Collections.singletonList(key));
+        return bytes == null ? 0 : bytes;
+    }
+}
@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 秒杀相关的key。
+ * 一张优惠券的库存被拆成多个分段，每个分段的key都带有相同的hash tag（如 {sk0}），
+ * 保证同一分段的库存、购买记录和订单stream落在同一个slot，Lua脚本在Redis Cluster下也能原子执行；
+ * 不同分段使用不同的hash tag，从而分散到不同的slot上。
+ */
+public class SeckillKeys {
+
+    public static String tag(int segment) {
+        return "{sk" + segment + "}";
+    }
+
+    /**
+     * 分段库存 seckill:stock:{sk0}:voucherId
+     */
+    public static String stockKey(Long voucherId, int segment) {
+        return SECKILL_STOCK_KEY + tag(segment) + ":" + voucherId;
+    }
+
+    /**
+     * 分段购买记录 seckill:order:{sk0}:voucherId，以userId为偏移量的bitmap，用户只记录在自己的归属分段里
+     */
+    public static String orderKey(Long voucherId, int segment) {
+        return SECKILL_ORDER_KEY + tag(segment) + ":" + voucherId;
+    }
+
+    /**
+     * 分段元数据 seckill:meta:{sk0}:voucherId，hash结构：begin、end（毫秒时间戳）。
+     * 每个分段各存一份，脚本可在同一slot内完成全部校验
+     */
+    public static String metaKey(Long voucherId, int segment) {
+        return SECKILL_META_KEY + tag(segment) + ":" + voucherId;
+    }
+
+    /**
+     * 分段订单队列 stream.orders:{sk0}，所有优惠券的同一分段共用一个stream
+     */
+    public static String streamKey(int segment) {
+        return SECKILL_ORDER_STREAM + tag(segment);
+    }
+
+    /**
+     * 根据用户id计算其归属分段
+     */
+    public static int homeSegment(Long userId, int segments) {
+        long h = userId * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 33) % segments);
+    }
+}
@@ -0,0 +1,213 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.net.NetUtil;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 雪花算法风格的本地id生成器，生成id时不访问网络。
+ * <p>
+ * id布局与RedisIdWorker相同，高31位是秒级时间戳，因此两种方式生成的id可以混用、按时间排序：
+ * 31位秒 | 10位秒内毫秒 | 10位机器号 | 12位序列号，每个机器号每毫秒最多4096个id。
+ * <p>
+ * 机器号从Redis租用（SET NX PX），后台定时续期并记录已发放到的时间，重新租到同一个机器号时从该时间之后开始，
+ * 避免与上一个持有者发放过的id重复。租约过期（续期失败或长时间连不上Redis）时换一个机器号，换不到则拒绝发放。
+ */
+@Slf4j
+public class SnowflakeIdGenerator {
+
+    private static final long BEGIN_TIMESTAMP = 1640995200L;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int WORKER_BITS = 10;
+    private static final int MILLIS_BITS = 10;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    private static final String WORKER_KEY = "id:worker:";
+    private static final TimeZone ZONE = TimeZone.getDefault();
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "if(redis.call('get',KEYS[1]) ~= ARGV[1]) then return 0 end " +
+            "redis.call('pexpire',KEYS[1],ARGV[2]) " +
+            "redis.call('set',KEYS[2],ARGV[3]) " +
+            "return 1", Long.class);
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT = new DefaultRedisScript<>(
+            "if(redis.call('get',KEYS[1]) ~= ARGV[1]) then return 0 end " +
+            "redis.call('set',KEYS[2],ARGV[2]) " +
+            "return redis.call('del',KEYS[1])", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final long leaseMillis;
+    private final String owner = NetUtil.getLocalHostName() + "-" + UUID.fastUUID().toString(true);
+    private final ScheduledExecutorService heartbeat;
+
+    /**
+     * 上一个发放的id，生成id只需要一次CAS
+     */
+    private final AtomicLong state = new AtomicLong();
+    private volatile long leaseDeadline;
+
+    public SnowflakeIdGenerator(StringRedisTemplate stringRedisTemplate, long leaseMillis) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.leaseMillis = leaseMillis;
+        acquire();
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "id-worker-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleWithFixedDelay(this::renew, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+    }
+
+    public long nextId() {
+        if (System.currentTimeMillis() > leaseDeadline) {
+            ensureLease();
+        }
+        while (true) {
+            long prev = state.get();
+            long prevMillis = millisOf(prev);
+            long now = currentMillis();
+            long next;
+            if (now > prevMillis) {
+                // 1.进入新的毫秒，序列号从0开始
+                next = compose(now, workerOf(prev), 0);
+            } else if ((prev & MAX_SEQUENCE) < MAX_SEQUENCE) {
+                // 2.同一毫秒内，或时钟回拨后沿用上一次的时间戳，序列号加一
+                next = prev + 1;
+            } else if (now < prevMillis) {
+                // 3.时钟回拨且序列号用完，逻辑时钟前进1毫秒，不等待回拨的时间
+                next = compose(prevMillis + 1, workerOf(prev), 0);
+            } else {
+                // 4.当前毫秒的序列号用完，等待下一毫秒
+                Thread.yield();
+                continue;
+            }
+            if (state.compareAndSet(prev, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * 当前持有的机器号
+     */
+    public int workerId() {
+        return (int) workerOf(state.get());
+    }
+
+    /**
+     * 归还机器号，并记录已发放到的时间
+     */
+    public void close() {
+        heartbeat.shutdownNow();
+        long prev = state.get();
+        try {
+            stringRedisTemplate.execute(RELEASE_SCRIPT, keys(workerOf(prev)), owner, String.valueOf(millisOf(prev)));
+        } catch (Exception e) {
+            log.warn("归还id机器号失败，等待租约自然过期", e);
+        }
+    }
+
+    /**
+     * 租用一个空闲的机器号，从随机位置开始查找，减少多个节点同时启动时的冲突
+     */
+    private synchronized void acquire() {
+        int start = RandomUtil.randomInt(MAX_WORKERS);
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int worker = (start + i) % MAX_WORKERS;
+            //租约的截止时间从发出请求前开始算，不会晚于Redis中key的过期时间
+            long requestTime = System.currentTimeMillis();
+            Boolean ok = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(WORKER_KEY + "{" + worker + "}", owner, leaseMillis, TimeUnit.MILLISECONDS);
+            if (!Boolean.TRUE.equals(ok)) {
+                continue;
+            }
+            //从上一个持有者发放到的时间和本节点已发放到的时间中取较大者，保证不重复且本节点递增
+            String last = stringRedisTemplate.opsForValue().get(WORKER_KEY + "{" + worker + "}:last");
+            long lastMillis = last == null ? 0 : Long.parseLong(last);
+            //与正在执行的nextId竞争，用CAS切换，切换之后发放的id都大于之前发放过的
+            long prev;
+            long next;
+            do {
+                prev = state.get();
+                long begin = Math.max(Math.max(currentMillis(), lastMillis + 1), millisOf(prev) + 1);
+                next = compose(begin, worker, 0);
+            } while (!state.compareAndSet(prev, next));
+            leaseDeadline = requestTime + leaseMillis;
+            log.info("租用id机器号{}", worker);
+            return;
+        }
+        throw new IllegalStateException("没有空闲的id机器号");
+    }
+
+    private synchronized void renew() {
+        long prev = state.get();
+        long worker = workerOf(prev);
+        long now = currentMillis();
+        if (now < millisOf(prev) - 1000) {
+            log.warn("系统时钟回拨了{}毫秒，id继续使用逻辑时钟", millisOf(prev) - now);
+        }
+        try {
+            long requestTime = System.currentTimeMillis();
+            Long ok = stringRedisTemplate.execute(RENEW_SCRIPT, keys(worker),
+                    owner, String.valueOf(leaseMillis), String.valueOf(millisOf(prev)));
+            if (ok != null && ok == 1) {
+                leaseDeadline = requestTime + leaseMillis;
+                return;
+            }
+            //租约已经丢失（过期后被其他节点租走），换一个机器号
+            log.warn("id机器号{}的租约已丢失，重新租用", worker);
+            acquire();
+        } catch (Exception e) {
+            log.error("id机器号续期失败", e);
+        }
+    }
+
+    private synchronized void ensureLease() {
+        if (System.currentTimeMillis() <= leaseDeadline) {
+            return;
+        }
+        renew();
+        if (System.currentTimeMillis() > leaseDeadline) {
+            throw new IllegalStateException("id机器号租约已过期，暂停生成id");
+        }
+    }
+
+    private List<String> keys(long worker) {
+        return Arrays.asList(WORKER_KEY + "{" + worker + "}", WORKER_KEY + "{" + worker + "}:last");
+    }
+
+    /**
+     * 与RedisIdWorker一致，以本地时间作为时间戳，单位毫秒，从BEGIN_TIMESTAMP开始
+     */
+    private static long currentMillis() {
+        long now = System.currentTimeMillis();
+        return now + ZONE.getOffset(now) - BEGIN_TIMESTAMP * 1000;
+    }
+
+    private static long compose(long millis, long worker, long sequence) {
+        return (millis / 1000) << (MILLIS_BITS + WORKER_BITS + SEQUENCE_BITS)
+                | (millis % 1000) << (WORKER_BITS + SEQUENCE_BITS)
+                | worker << SEQUENCE_BITS
+                | sequence;
+    }
+
+    private static long millisOf(long id) {
+        return (id >>> (MILLIS_BITS + WORKER_BITS + SEQUENCE_BITS)) * 1000
+                + (id >>> (WORKER_BITS + SEQUENCE_BITS) & ((1 << MILLIS_BITS) - 1));
+    }
+
+    private static long workerOf(long id) {
+        return id >>> SEQUENCE_BITS & (MAX_WORKERS - 1);
+    }
+}
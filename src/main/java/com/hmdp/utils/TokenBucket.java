@@ -0,0 +1,40 @@
+package com.hmdp.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 无锁令牌桶。
+ * 只维护一个"理论到达时间"（GCRA算法）：每放行一个请求向后推进一个发放间隔，
+ * 推进后超出当前时间的部分不能超过桶容量对应的时长，整个判断用一次CAS完成。
+ */
+public class TokenBucket {
+
+    /**
+     * 发放一个令牌的间隔，单位纳秒
+     */
+    private final long intervalNanos;
+    /**
+     * 桶容量对应的时长，单位纳秒
+     */
+    private final long burstNanos;
+    private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.intervalNanos = (long) (1_000_000_000L / permitsPerSecond);
+        this.burstNanos = intervalNanos * Math.max(burst, 1);
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long tat = theoreticalArrival.get();
+            long next = Math.max(tat, now) + intervalNanos;
+            if (next - now > burstNanos) {
+                return false;
+            }
+            if (theoreticalArrival.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+}
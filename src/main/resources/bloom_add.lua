@@ -0,0 +1,19 @@
+-- 把id写入Redis中的布隆过滤器
+-- 1.key列表（同一个hash tag）
+-- 1.1过滤器bitmap
+local key = KEYS[1]
+-- 1.2过滤器参数
+local metaKey = KEYS[2]
+-- 2.参数列表
+-- 2.1计算位置时使用的位数，ARGV[2..]为id在bitmap中的位置
+
+-- 3.过滤器已被重建（位数不同）或者不存在时不写入，由调用方按新的参数重新计算
+if(redis.call('hget',metaKey,'bits') ~= ARGV[1]) then
+    return 0
+end
+-- 4.写入并增加已插入个数
+for i = 2, #ARGV do
+    redis.call('setbit',key,ARGV[i],1)
+end
+redis.call('hincrby',metaKey,'count',1)
+return 1
@@ -0,0 +1,15 @@
+-- 用重建好的bitmap替换布隆过滤器，bitmap和参数同时生效
+-- 1.key列表（同一个hash tag）
+-- 1.1重建时写入的临时bitmap
+local tmpKey = KEYS[1]
+-- 1.2过滤器bitmap
+local key = KEYS[2]
+-- 1.3过滤器参数
+local metaKey = KEYS[3]
+-- 2.参数列表：位数、哈希函数个数、已插入个数、版本号
+
+-- 3.替换bitmap和参数
+redis.call('rename',tmpKey,key)
+redis.call('del',metaKey)
+redis.call('hmset',metaKey,'bits',ARGV[1],'hashes',ARGV[2],'count',ARGV[3],'version',ARGV[4])
+return 1
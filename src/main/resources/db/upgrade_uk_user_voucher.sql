@@ -0,0 +1,19 @@
+-- ----------------------------
+-- 已有数据库升级：tb_voucher_order 增加 (user_id, voucher_id) 唯一索引
+-- hmdp.sql 新建的库已经包含该索引，无需执行
+-- ----------------------------
+
+-- 1.先查看重复的订单（同一用户同一张券多于一单），按业务确认后再清理
+SELECT `user_id`, `voucher_id`, COUNT(*) AS `orders`, MIN(`id`) AS `keep_id`
+FROM `tb_voucher_order`
+GROUP BY `user_id`, `voucher_id`
+HAVING COUNT(*) > 1;
+
+-- 2.每个(user_id, voucher_id)只保留最早的一单（id最小），删除其余订单。
+--   删除的订单已经扣减过 tb_seckill_voucher 的库存，需要时按删除数量补回
+DELETE o FROM `tb_voucher_order` o
+JOIN `tb_voucher_order` k
+  ON o.`user_id` = k.`user_id` AND o.`voucher_id` = k.`voucher_id` AND o.`id` > k.`id`;
+
+-- 3.增加唯一索引，大表建议在业务低峰期执行
+ALTER TABLE `tb_voucher_order` ADD UNIQUE KEY `uk_user_voucher`(`user_id`, `voucher_id`);
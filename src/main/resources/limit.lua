@@ -0,0 +1,25 @@
+-- 滑动窗口限流
+-- 1.key列表：限流维度对应的zset，成员为请求，分值为请求时间
+local key = KEYS[1]
+-- 2.参数列表
+-- 2.1窗口大小（毫秒）
+local window = tonumber(ARGV[1])
+-- 2.2窗口内允许的请求数
+local limit = tonumber(ARGV[2])
+-- 2.3本次请求的唯一标识
+local member = ARGV[3]
+
+-- 3.以Redis服务器时间为准，避免各节点时钟不一致（Redis 5起脚本按效果复制，写命令之前可以调用TIME）
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+
+-- 4.移除窗口之外的请求
+redis.call('zremrangebyscore',key,0,nowMillis - window)
+-- 5.判断窗口内的请求数
+if(redis.call('zcard',key) >= limit) then
+    return 0
+end
+-- 6.记录本次请求
+redis.call('zadd',key,nowMillis,member)
+redis.call('pexpire',key,window)
+return 1
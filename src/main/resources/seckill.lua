@@ -1,28 +1,60 @@
--- 1.参数列表
--- 1.1优惠券id
+-- 在用户的归属分段上判断资格并下单
+-- 1.key列表（同一个hash tag，位于同一slot）
+-- 1.1分段库存key
+local stockKey = KEYS[1]
+-- 1.2分段订单key
+local orderKey = KEYS[2]
+-- 1.3分段订单stream
+local streamKey = KEYS[3]
+-- 1.4分段元数据key
+local metaKey = KEYS[4]
+
+-- 2.参数列表
+-- 2.1优惠券id
 local voucherId = ARGV[1]
--- 1.2用户id
+-- 2.2用户id
 local userId = ARGV[2]
+-- 2.3订单id
+local orderId = ARGV[3]
+-- 2.4是否还有其他分段可以借库存
+local hasOtherSegments = ARGV[4] == '1'
+-- 2.5是否把订单写入stream，单节点预写日志模式下由应用自己记录订单
+local useStream = ARGV[5] ~= '0'
 
--- 2.数据key
--- 2.1库存key
-local stockKey = 'seckill:stock:' .. voucherId
--- 2.2订单key
-local orderKey = 'seckill:order:' .. voucherId
-
--- 3.判断库存是否充足
-if(tonumber(redis.call('get',stockKey)) <= 0) then
-    return 1
+-- 3.校验秒杀时间，元数据不存在时不做限制
+-- 以Redis服务器时间为准，避免各节点时钟不一致（Redis 5起脚本按效果复制，写命令之前可以调用TIME）
+local meta = redis.call('hmget',metaKey,'begin','end')
+local now = redis.call('time')
+local nowMillis = tonumber(now[1]) * 1000 + math.floor(tonumber(now[2]) / 1000)
+if(meta[1] and nowMillis < tonumber(meta[1])) then
+    return 4
+end
+if(meta[2] and nowMillis > tonumber(meta[2])) then
+    return 5
 end
 
--- 3.2 判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember',orderKey,userId) == 1) then
+-- 4.判断用户是否下单 GETBIT orderKey userId
+if(redis.call('getbit',orderKey,userId) == 1) then
     return 2
 end
 
--- 3.4 扣库存
+-- 5.判断库存是否充足
+if(tonumber(redis.call('get',stockKey) or '0') <= 0) then
+    if(hasOtherSegments) then
+        -- 5.1本分段已空，先占住该用户，再去其他分段扣库存
+        redis.call('setbit',orderKey,userId,1)
+        return 3
+    end
+    return 1
+end
+
+-- 6.扣库存
 redis.call('incrby',stockKey,-1)
--- 3.5 下单（保存用户）sadd orderKey userId
-redis.call('sadd',orderKey,userId)
+-- 7.下单（保存用户）SETBIT orderKey userId 1
+redis.call('setbit',orderKey,userId,1)
+-- 8.发送消息到队列中 XADD stream.orders:{sk0} * k1 v1 k2 v2 ...
+if(useStream) then
+    redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId)
+end
 
-return 0
\ No newline at end of file
+return 0
@@ -0,0 +1,6 @@
+-- 所有分段都没有库存时，撤销用户在归属分段中的占位
+local orderKey = KEYS[1]
+local userId = ARGV[1]
+
+-- 清除bitmap中的标记
+return redis.call('setbit',orderKey,userId,0)
@@ -0,0 +1,23 @@
+-- 数据库拒绝订单后，撤销Redis中的扣减
+-- 1.key列表（用户归属分段，同一个hash tag）
+-- 1.1分段库存key
+local stockKey = KEYS[1]
+-- 1.2分段订单key
+local orderKey = KEYS[2]
+
+-- 2.参数列表
+-- 2.1用户id
+local userId = ARGV[1]
+-- 2.2是否清除购买记录，用户可以重新下单
+local releaseBuyer = ARGV[2] == '1'
+
+-- 3.清除购买记录，已经清除过说明已撤销（消息重放），不再加回库存
+if(releaseBuyer) then
+    if(redis.call('getbit',orderKey,userId) == 0) then
+        return 0
+    end
+    redis.call('setbit',orderKey,userId,0)
+end
+-- 4.加回库存
+redis.call('incrby',stockKey,1)
+return 1
@@ -0,0 +1,25 @@
+-- 归属分段库存不足时，到其他分段扣库存（用户已在归属分段占位）
+-- 1.key列表
+-- 1.1分段库存key
+local stockKey = KEYS[1]
+-- 1.2分段订单stream
+local streamKey = KEYS[2]
+
+-- 2.参数列表
+local voucherId = ARGV[1]
+local userId = ARGV[2]
+local orderId = ARGV[3]
+local useStream = ARGV[4] ~= '0'
+
+-- 3.判断库存是否充足
+if(tonumber(redis.call('get',stockKey) or '0') <= 0) then
+    return 1
+end
+
+-- 4.扣库存并发送消息到队列中
+redis.call('incrby',stockKey,-1)
+if(useStream) then
+    redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId)
+end
+
+return 0
@@ -0,0 +1,281 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheRebuildScheduler;
+import com.hmdp.utils.HotKeyDetector;
+import com.hmdp.utils.IdBloomFilters;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.SessionCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * CacheClient单飞：缓存未命中时并发的请求只查询一次数据库
+ */
+class CacheClientTests {
+
+    private static final int THREADS = 32;
+
+    private ValueOperations<String, byte[]> valueOperations;
+    private ValueOperations<String, String> stringOperations;
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+    private StringRedisTemplate stringRedisTemplate;
+    private IdBloomFilters idBloomFilters;
+    private CacheClient cacheClient;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        stringOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(stringOperations);
+        when(stringOperations.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        cacheRedisTemplate = mock(RedisTemplate.class);
+        valueOperations = mock(ValueOperations.class);
+        when(cacheRedisTemplate.opsForValue()).thenReturn(valueOperations);
+        idBloomFilters = mock(IdBloomFilters.class);
+        when(idBloomFilters.mightContain(anyString(), any())).thenReturn(true);
+        cacheClient = newCacheClient(new HotKeyDetector(false, 1, 1, 10));
+    }
+
+    @Test
+    void testConcurrentMissesQueryDatabaseOnce() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        List<Shop> results = runConcurrently(id -> {
+            queries.incrementAndGet();
+            sleep(200);
+            return new Shop().setId(id).setName("shop-" + id);
+        }, false);
+
+        assertEquals(1, queries.get(), "数据库查询次数");
+        for (Shop shop : results) {
+            assertEquals("shop-1", shop.getName());
+        }
+    }
+
+    @Test
+    void testConcurrentMissesOfAbsentKeyQueryDatabaseOnce() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        List<Shop> results = runConcurrently(id -> {
+            queries.incrementAndGet();
+            sleep(200);
+            return null;
+        }, false);
+
+        assertEquals(1, queries.get(), "数据库查询次数");
+        results.forEach(shop -> assertNull(shop));
+        verify(valueOperations).set(eq(CACHE_SHOP_KEY + 1), argThat(bytes -> bytes.length == 0), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testStatsCountedPerPrefix() {
+        Function<Long, Shop> dbFallback = id -> new Shop().setId(id).setName("shop-" + id);
+        cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+        cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES);
+        cacheClient.queryWithPassThrough("cache:test:", 2L, Shop.class, id -> null, 30L, TimeUnit.MINUTES);
+        cacheClient.queryWithPassThrough("cache:test:", 2L, Shop.class, id -> null, 30L, TimeUnit.MINUTES);
+
+        Map<String, Map<String, Object>> prefixes = (Map<String, Map<String, Object>>) cacheClient.stats().get("prefixes");
+        Map<String, Object> shop = prefixes.get(CACHE_SHOP_KEY);
+        assertEquals(1L, shop.get("localHits"));
+        assertEquals(1L, shop.get("misses"));
+        assertEquals(1L, ((Map<String, Object>) shop.get("load")).get("count"));
+        Map<String, Object> test = prefixes.get("cache:test:");
+        assertEquals(1L, test.get("nullHits"));
+        assertEquals(1L, test.get("misses"));
+    }
+
+    @Test
+    void testDistributedLeaseQueriesDatabaseOnce() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        List<Shop> results = runConcurrently(id -> {
+            queries.incrementAndGet();
+            sleep(200);
+            return new Shop().setId(id).setName("shop-" + id);
+        }, true);
+
+        assertEquals(1, queries.get(), "数据库查询次数");
+        assertEquals(THREADS, results.size());
+        verify(stringOperations, times(1)).setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    void testLogicalExpireLoadsColdKeyOnce() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        List<Shop> results = runConcurrently(() -> cacheClient.queryWithLogicalExpire("cache:test:", 1L, Shop.class, id -> {
+            queries.incrementAndGet();
+            sleep(200);
+            return new Shop().setId(id).setName("shop-" + id);
+        }, 20L, TimeUnit.SECONDS));
+
+        assertEquals(1, queries.get(), "数据库查询次数");
+        for (Shop shop : results) {
+            assertEquals("shop-1", shop.getName());
+        }
+        //按传入的前缀写入，不设置Redis过期时间
+        verify(valueOperations).set(eq("cache:test:1"), argThat(bytes -> bytes.length > 0));
+    }
+
+    @Test
+    void testLogicalExpireCachesAbsentKey() throws Exception {
+        AtomicInteger queries = new AtomicInteger();
+        List<Shop> results = runConcurrently(() -> cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, 1L, Shop.class, id -> {
+            queries.incrementAndGet();
+            sleep(200);
+            return null;
+        }, 20L, TimeUnit.SECONDS));
+
+        assertEquals(1, queries.get(), "数据库查询次数");
+        results.forEach(shop -> assertNull(shop));
+        verify(valueOperations).set(eq(CACHE_SHOP_KEY + 1), argThat(bytes -> bytes.length == 0), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    void testMultiGetLoadsMissesInOneBatch() {
+        BinaryCacheCodec codec = new BinaryCacheCodec();
+        when(valueOperations.multiGet(Arrays.asList(CACHE_SHOP_KEY + 1, CACHE_SHOP_KEY + 2, CACHE_SHOP_KEY + 3)))
+                .thenReturn(Arrays.asList(codec.encode(new Shop().setId(1L).setName("shop-1"), CacheCodec.NO_EXPIRE), null, new byte[0]));
+        List<List<Long>> batches = new ArrayList<>();
+
+        Map<Long, Shop> shops = cacheClient.multiGet(CACHE_SHOP_KEY, Arrays.asList(1L, 2L, 3L, 2L), Shop.class, ids -> {
+            batches.add(ids);
+            Map<Long, Shop> rows = new HashMap<>();
+            ids.forEach(id -> rows.put(id, new Shop().setId(id).setName("shop-" + id)));
+            return rows;
+        }, 30L, TimeUnit.MINUTES);
+
+        //1命中Redis，2查询数据库，3命中空值
+        assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(shops.keySet()));
+        assertEquals("shop-2", shops.get(2L).getName());
+        assertEquals(Collections.singletonList(Collections.singletonList(2L)), batches);
+        verify(valueOperations, times(1)).multiGet(anyCollection());
+        verify(cacheRedisTemplate, times(1)).executePipelined(any(SessionCallback.class));
+        //再次查询全部命中一级缓存
+        cacheClient.multiGet(CACHE_SHOP_KEY, Arrays.asList(1L, 2L, 3L), Shop.class, ids -> {
+            throw new IllegalStateException("不应查询数据库");
+        }, 30L, TimeUnit.MINUTES);
+        verify(valueOperations, times(1)).multiGet(anyCollection());
+    }
+
+    @Test
+    void testRefreshEarlyBeforeExpiry() throws Exception {
+        BinaryCacheCodec codec = new BinaryCacheCodec();
+        //还有10毫秒过期，加载耗时1秒，几乎一定提前刷新
+        when(valueOperations.get(CACHE_SHOP_KEY + 1)).thenReturn(codec.encode(
+                new Shop().setId(1L).setName("old"), System.currentTimeMillis() + 10, false, 1000));
+        //还有1小时过期，加载耗时10毫秒，不会提前刷新
+        when(valueOperations.get(CACHE_SHOP_KEY + 2)).thenReturn(codec.encode(
+                new Shop().setId(2L).setName("old"), System.currentTimeMillis() + 3600_000, false, 10));
+        CountDownLatch refreshed = new CountDownLatch(1);
+        List<Long> loadedIds = new CopyOnWriteArrayList<>();
+        Function<Long, Shop> dbFallback = id -> {
+            loadedIds.add(id);
+            refreshed.countDown();
+            return new Shop().setId(id).setName("new");
+        };
+
+        assertEquals("old", cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES).getName());
+        assertEquals("old", cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 2L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES).getName());
+
+        assertTrue(refreshed.await(5, TimeUnit.SECONDS), "没有提前刷新");
+        assertEquals(Collections.singletonList(1L), loadedIds);
+    }
+
+    @Test
+    void testHotKeyPinnedAndRefreshedFromRedis() {
+        BinaryCacheCodec codec = new BinaryCacheCodec();
+        CacheClient client = newCacheClient(new HotKeyDetector(true, 1, 10, 10));
+        String key = CACHE_SHOP_KEY + 1;
+        when(valueOperations.get(key)).thenReturn(codec.encode(
+                new Shop().setId(1L).setName("v1"), System.currentTimeMillis() + 3600_000, false, 10));
+        Function<Long, Shop> dbFallback = id -> {
+            throw new IllegalStateException("不应查询数据库");
+        };
+        for (int i = 0; i < 20; i++) {
+            assertEquals("v1", client.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES).getName());
+        }
+        Map<String, Object> top = client.hotKeys().get(CACHE_SHOP_KEY).get(0);
+        assertEquals(key, top.get("key"));
+        assertEquals(true, top.get("pinned"));
+
+        //定时刷新一次MGET读取新值，查询不再访问Redis
+        when(valueOperations.multiGet(Collections.singletonList(key))).thenReturn(Collections.singletonList(codec.encode(
+                new Shop().setId(1L).setName("v2"), System.currentTimeMillis() + 3600_000, false, 10)));
+        client.refreshPinned();
+        assertEquals("v2", client.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, dbFallback, 30L, TimeUnit.MINUTES).getName());
+        verify(valueOperations, times(1)).get(key);
+    }
+
+    @Test
+    void testTtlJitter() {
+        for (int i = 0; i < 100; i++) {
+            cacheClient.set(CACHE_SHOP_KEY + i, new Shop().setId((long) i), 30L, TimeUnit.MINUTES);
+        }
+        ArgumentCaptor<Long> ttls = ArgumentCaptor.forClass(Long.class);
+        verify(valueOperations, times(100)).set(anyString(), any(byte[].class), ttls.capture(), eq(TimeUnit.MILLISECONDS));
+        long base = TimeUnit.MINUTES.toMillis(30);
+        for (Long ttl : ttls.getAllValues()) {
+            assertTrue(ttl >= base * 0.9 && ttl <= base * 1.1, "过期时间超出浮动范围：" + ttl);
+        }
+        assertTrue(new HashSet<>(ttls.getAllValues()).size() > 1, "过期时间没有浮动");
+    }
+
+    private CacheClient newCacheClient(HotKeyDetector hotKeyDetector) {
+        CacheMetrics cacheMetrics = new CacheMetrics();
+        return new CacheClient(stringRedisTemplate, cacheRedisTemplate, new BinaryCacheCodec(),
+                mock(RedisMessageListenerContainer.class), idBloomFilters, cacheMetrics,
+                new CacheRebuildScheduler(stringRedisTemplate, cacheMetrics, 2, 100), hotKeyDetector, 100, 5000);
+    }
+
+    private List<Shop> runConcurrently(Function<Long, Shop> dbFallback, boolean distributed) throws Exception {
+        return runConcurrently(() -> cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, 1L, Shop.class, dbFallback,
+                30L, TimeUnit.MINUTES, distributed));
+    }
+
+    private List<Shop> runConcurrently(Callable<Shop> query) throws Exception {
+        ExecutorService es = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        List<Future<Shop>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            futures.add(es.submit(() -> {
+                barrier.await();
+                return query.call();
+            }));
+        }
+        List<Shop> results = new ArrayList<>();
+        for (Future<Shop> future : futures) {
+            results.add(future.get(10, TimeUnit.SECONDS));
+        }
+        es.shutdown();
+        return results;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
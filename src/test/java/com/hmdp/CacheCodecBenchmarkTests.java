@@ -0,0 +1,121 @@
+package com.hmdp;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.Voucher;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import com.hmdp.utils.RedisData;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * 缓存编码压测：对比原来的JSON写法（RedisData包装，读取时解析两次）和二进制编码的每条字节数、编码和解码耗时，
+ * 并校验二进制编码能读取JSON写入的旧数据。
+ * <p>
+ * mvn test -Dtest=CacheCodecBenchmarkTests -Dbench=true -Dbench.iterations=200000
+ */
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+class CacheCodecBenchmarkTests {
+
+    private final int iterations = Integer.getInteger("bench.iterations", 200000);
+
+    @Test
+    void testShop() {
+        Shop shop = new Shop().setId(1L).setName("103茶餐厅").setTypeId(1L)
+                .setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg")
+                .setArea("大关").setAddress("金华路锦昌文华苑29号").setX(120.149192).setY(30.316078)
+                .setAvgPrice(80L).setSold(4215).setComments(3035).setScore(37).setOpenHours("10:00-22:00")
+                .setCreateTime(LocalDateTime.now().withNano(0)).setUpdateTime(LocalDateTime.now().withNano(0));
+        run("Shop", shop, Shop.class);
+    }
+
+    @Test
+    void testVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setId(1L);
+        voucher.setShopId(1L);
+        voucher.setTitle("50元代金券");
+        voucher.setSubTitle("周一至周日均可使用");
+        voucher.setRules("全场通用\n无需预约\n可无限叠加\n不兑现、不找零\n仅限堂食");
+        voucher.setPayValue(4750L);
+        voucher.setActualValue(5000L);
+        voucher.setType(0);
+        voucher.setStatus(1);
+        voucher.setCreateTime(LocalDateTime.now().withNano(0));
+        voucher.setUpdateTime(LocalDateTime.now().withNano(0));
+        run("Voucher", voucher, Voucher.class);
+    }
+
+    @Test
+    void testUserDTO() {
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_slxaxy2au9");
+        user.setIcon("/imgs/icons/kls.jpg");
+        run("UserDTO", user, UserDTO.class);
+    }
+
+    private <T> void run(String name, T value, Class<T> type) {
+        long expireAt = System.currentTimeMillis() + 20000;
+        CacheCodec binary = new BinaryCacheCodec();
+        CacheCodec json = new JsonCacheCodec();
+        //1.原来的写法：序列化RedisData，读取时先解析成RedisData，再把data转换成目标类型
+        Function<T, byte[]> legacyEncode = v -> {
+            RedisData redisData = new RedisData();
+            redisData.setData(v);
+            redisData.setExpireTime(LocalDateTime.now().plusSeconds(20));
+            return JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+        };
+        Function<byte[], T> legacyDecode = bytes -> {
+            RedisData redisData = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+            return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        };
+        byte[] legacyBytes = legacyEncode.apply(value);
+        byte[] binaryBytes = binary.encode(value, expireAt);
+
+        //2.正确性：往返一致，二进制编码能读取旧格式
+        assertEquals(value, binary.decode(binaryBytes, type));
+        assertEquals(value, json.decode(json.encode(value, expireAt), type));
+        assertEquals(JSONUtil.toJsonStr(legacyDecode.apply(legacyBytes)), JSONUtil.toJsonStr(binary.decode(legacyBytes, type)));
+        assertEquals(expireAt, binary.expireAt(binaryBytes));
+
+        //3.耗时
+        double jsonEncode = measure(() -> legacyEncode.apply(value));
+        double jsonDecode = measure(() -> legacyDecode.apply(legacyBytes));
+        double binaryEncode = measure(() -> binary.encode(value, expireAt));
+        double binaryDecode = measure(() -> binary.decode(binaryBytes, type));
+        double binaryExpireAt = measure(() -> binary.expireAt(binaryBytes));
+        System.out.printf("%s json: %d bytes, encode = %.0f ns/op, decode = %.0f ns/op%n",
+                name, legacyBytes.length, jsonEncode, jsonDecode);
+        System.out.printf("%s binary: %d bytes, encode = %.0f ns/op, decode = %.0f ns/op, expireAt = %.1f ns/op%n",
+                name, binaryBytes.length, binaryEncode, binaryDecode, binaryExpireAt);
+    }
+
+    private double measure(Supplier<Object> op) {
+        Object sink = null;
+        //预热
+        for (int i = 0; i < iterations; i++) {
+            sink = op.get();
+        }
+        long begin = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sink = op.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if (sink == null) {
+            throw new IllegalStateException();
+        }
+        return (double) elapsed / iterations;
+    }
+}
@@ -0,0 +1,44 @@
+package com.hmdp;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.utils.BinaryCacheCodec;
+import com.hmdp.utils.CacheCodec;
+import com.hmdp.utils.JsonCacheCodec;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 不是实体类的值写成JSON：JSON数组（集合、数组）也能读回
+ */
+class CacheCodecTests {
+
+    private static final long EXPIRE_AT = System.currentTimeMillis() + 60000;
+
+    @Test
+    void testListRoundTrip() {
+        List<String> names = Arrays.asList("火锅", "烧烤", "KTV");
+        for (CacheCodec codec : Arrays.asList(new JsonCacheCodec(), new BinaryCacheCodec())) {
+            //1.有逻辑过期时间和没有逻辑过期时间
+            assertEquals(names, codec.decode(codec.encode(names, EXPIRE_AT), List.class));
+            byte[] bytes = codec.encode(names, CacheCodec.NO_EXPIRE, false, 0);
+            assertEquals(names, codec.decode(bytes, List.class));
+            assertEquals(CacheCodec.NO_EXPIRE, codec.expireAt(bytes));
+        }
+    }
+
+    @Test
+    void testArrayOfBeansRoundTrip() {
+        Shop[] shops = {new Shop().setId(1L).setName("103茶餐厅"), new Shop().setId(2L).setName("蔡馬洪涛烤肉")};
+        for (CacheCodec codec : Arrays.asList(new JsonCacheCodec(), new BinaryCacheCodec())) {
+            //数组类型按元素类型读取
+            Shop[] decoded = codec.decode(codec.encode(shops, EXPIRE_AT), Shop[].class);
+            assertEquals(2, decoded.length);
+            assertEquals(2L, decoded[1].getId());
+            assertEquals("蔡馬洪涛烤肉", decoded[1].getName());
+        }
+    }
+}
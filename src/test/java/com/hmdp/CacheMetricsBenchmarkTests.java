@@ -0,0 +1,110 @@
+package com.hmdp;
+
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 缓存指标压测：读路径上每次查询的记录开销（按前缀查找指标并累加计数）不超过50ns，
+ * 多线程同时写同一个前缀时也不超过；并校验直方图分位数的误差。
+ * <p>
+ * mvn test -Dtest=CacheMetricsBenchmarkTests -Dbench=true -Dbench.iterations=10000000 -Dbench.threads=8
+ */
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+class CacheMetricsBenchmarkTests {
+
+    private static final double MAX_NANOS = 50;
+
+    private final int iterations = Integer.getInteger("bench.iterations", 10000000);
+    private final int threads = Integer.getInteger("bench.threads", Runtime.getRuntime().availableProcessors());
+
+    @Test
+    void testReadPathOverhead() throws Exception {
+        CacheMetrics metrics = new CacheMetrics();
+        //一级缓存命中：查找前缀 + 一次计数
+        double localHit = measure(1, () -> metrics.of(CACHE_SHOP_KEY).localHit());
+        //Redis命中：查找前缀 + 两次计数
+        double redisHit = measure(1, () -> {
+            CacheMetrics.Prefix m = metrics.of(CACHE_SHOP_KEY);
+            m.localMiss();
+            m.redisHit();
+        });
+        double contended = measure(threads, () -> {
+            CacheMetrics.Prefix m = metrics.of(CACHE_SHOP_KEY);
+            m.localMiss();
+            m.redisHit();
+        });
+        double load = measure(1, () -> metrics.of(CACHE_SHOP_KEY).load(1234567));
+        System.out.printf("localHit = %.1f ns/op, redisHit = %.1f ns/op, redisHit x %d threads = %.1f ns/op, load = %.1f ns/op%n",
+                localHit, redisHit, threads, contended, load);
+
+        assertTrue(localHit < MAX_NANOS, "一级缓存命中的记录开销");
+        assertTrue(redisHit < MAX_NANOS, "Redis命中的记录开销");
+        assertTrue(contended < MAX_NANOS, "多线程的记录开销");
+    }
+
+    @Test
+    void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        //1微秒到10毫秒均匀分布
+        for (long v = 1000; v <= 10_000_000; v += 1000) {
+            histogram.record(v);
+        }
+        assertEquals(10000, histogram.count());
+        assertWithin(5_000_000, histogram.percentile(0.5));
+        assertWithin(9_900_000, histogram.percentile(0.99));
+        assertEquals(10_000_000, histogram.percentile(1));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) <= expected / 16,
+                "expected " + expected + " but was " + actual);
+    }
+
+    /**
+     * @return 每次操作占用的CPU时间：总耗时 * 实际并行的线程数 / 总操作数。
+     * 线程数超过CPU核数时各线程轮流执行，不能按单个线程的耗时计算
+     */
+    private double measure(int threadCount, Runnable op) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            AtomicLong begin = new AtomicLong();
+            CyclicBarrier barrier = new CyclicBarrier(threadCount, () -> begin.set(System.nanoTime()));
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int t = 0; t < threadCount; t++) {
+                futures.add(executor.submit(() -> {
+                    //预热
+                    for (int i = 0; i < iterations; i++) {
+                        op.run();
+                    }
+                    barrier.await();
+                    for (int i = 0; i < iterations; i++) {
+                        op.run();
+                    }
+                    return System.nanoTime();
+                }));
+            }
+            long end = 0;
+            for (Future<Long> future : futures) {
+                end = Math.max(end, future.get());
+            }
+            int parallelism = Math.min(threadCount, Runtime.getRuntime().availableProcessors());
+            return (double) (end - begin.get()) * parallelism / threadCount / iterations;
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
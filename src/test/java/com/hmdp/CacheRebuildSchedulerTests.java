@@ -0,0 +1,143 @@
+package com.hmdp;
+
+import com.hmdp.utils.CacheMetrics;
+import com.hmdp.utils.CacheRebuildScheduler;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ValueOperations;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.LOCK_CACHE_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * 缓存重建调度：去重、队列满时丢弃、按访问次数排序、校验持有者释放锁、记录失败
+ */
+class CacheRebuildSchedulerTests {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private CacheMetrics cacheMetrics;
+    private CacheMetrics.Prefix metrics;
+    private CacheRebuildScheduler scheduler;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        ValueOperations<String, String> stringOperations = mock(ValueOperations.class);
+        when(stringRedisTemplate.opsForValue()).thenReturn(stringOperations);
+        when(stringOperations.setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class))).thenReturn(true);
+        cacheMetrics = new CacheMetrics();
+        metrics = cacheMetrics.of(CACHE_SHOP_KEY);
+        scheduler = new CacheRebuildScheduler(stringRedisTemplate, cacheMetrics, 1, 3);
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        scheduler.shutdown();
+    }
+
+    @Test
+    void testDuplicateSubmitsAreMerged() throws Exception {
+        blockWorker();
+        int[] runs = new int[1];
+        assertTrue(scheduler.submit(metrics, CACHE_SHOP_KEY + 1, () -> runs[0]++));
+        for (int i = 0; i < 99; i++) {
+            assertFalse(scheduler.submit(metrics, CACHE_SHOP_KEY + 1, () -> runs[0]++));
+        }
+        release.countDown();
+        awaitIdle();
+
+        assertEquals(1, runs[0]);
+        assertEquals(99L, stat("rebuildDeduped"));
+        //重复提交不访问Redis：只有阻塞任务和这个任务各加锁一次
+        verify(stringRedisTemplate.opsForValue(), times(2)).setIfAbsent(anyString(), anyString(), anyLong(), any(TimeUnit.class));
+    }
+
+    @Test
+    void testFullQueueShedsTasks() throws Exception {
+        blockWorker();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(scheduler.submit(metrics, CACHE_SHOP_KEY + i, () -> { }));
+        }
+        assertFalse(scheduler.submit(metrics, CACHE_SHOP_KEY + 3, () -> { }));
+        assertEquals(3, scheduler.queueSize());
+        assertEquals(1L, stat("rebuildShed"));
+        //丢弃之后可以重新提交
+        release.countDown();
+        awaitIdle();
+        assertTrue(scheduler.submit(metrics, CACHE_SHOP_KEY + 3, () -> { }));
+    }
+
+    @Test
+    void testFrequentKeysRunFirst() throws Exception {
+        blockWorker();
+        List<String> order = new CopyOnWriteArrayList<>();
+        scheduler.submit(metrics, CACHE_SHOP_KEY + 1, () -> order.add("cold"));
+        scheduler.submit(metrics, CACHE_SHOP_KEY + 2, () -> order.add("hot"));
+        for (int i = 0; i < 5; i++) {
+            scheduler.submit(metrics, CACHE_SHOP_KEY + 2, () -> order.add("hot"));
+        }
+        release.countDown();
+        awaitIdle();
+
+        assertEquals(Arrays.asList("hot", "cold"), order);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testFailureIsRecordedAndLockReleasedByOwner() throws Exception {
+        scheduler.submit(metrics, CACHE_SHOP_KEY + 1, () -> {
+            throw new IllegalStateException("数据库不可用");
+        });
+        awaitIdle();
+
+        assertEquals(1L, stat("rebuilds"));
+        assertEquals(1L, stat("rebuildFailures"));
+        verify(stringRedisTemplate).execute(any(RedisScript.class), eq(Collections.singletonList(LOCK_CACHE_KEY + CACHE_SHOP_KEY + 1)), anyString());
+        verify(stringRedisTemplate, never()).delete(anyString());
+    }
+
+    /**
+     * 提交一个阻塞唯一工作线程的任务，直到release
+     */
+    private void blockWorker() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        scheduler.submit(metrics, "cache:block", () -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        //队列为空之后，最后一个任务可能还在执行
+        while (scheduler.queueSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object stat(String name) {
+        Map<String, Map<String, Object>> prefixes = (Map<String, Map<String, Object>>) cacheMetrics.snapshot().get("prefixes");
+        return prefixes.get(CACHE_SHOP_KEY).get(name);
+    }
+}
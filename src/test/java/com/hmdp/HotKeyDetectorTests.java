@@ -0,0 +1,59 @@
+package com.hmdp;
+
+import com.hmdp.utils.HotKeyDetector;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 热点key探测：按前缀列出访问最多的key，访问停止后随窗口滑出
+ */
+class HotKeyDetectorTests {
+
+    @Test
+    void testTopKPerPrefix() {
+        HotKeyDetector detector = new HotKeyDetector(true, 1, 10, 2);
+        record(detector, CACHE_SHOP_KEY, CACHE_SHOP_KEY + 1, 30);
+        record(detector, CACHE_SHOP_KEY, CACHE_SHOP_KEY + 2, 20);
+        record(detector, CACHE_SHOP_KEY, CACHE_SHOP_KEY + 3, 15);
+        record(detector, CACHE_SHOP_KEY, CACHE_SHOP_KEY + 4, 1);
+        record(detector, CACHE_USER_KEY, CACHE_USER_KEY + 1, 12);
+
+        Map<String, List<Map<String, Object>>> top = detector.topK();
+        List<Map<String, Object>> shops = top.get(CACHE_SHOP_KEY);
+        assertEquals(2, shops.size());
+        assertEquals(CACHE_SHOP_KEY + 1, shops.get(0).get("key"));
+        assertEquals(CACHE_SHOP_KEY + 2, shops.get(1).get("key"));
+        //Count-Min Sketch只会高估
+        assertTrue((Long) shops.get(0).get("count") >= 30);
+        assertEquals(CACHE_USER_KEY + 1, top.get(CACHE_USER_KEY).get(0).get("key"));
+        assertTrue(detector.isHot(CACHE_SHOP_KEY + 3));
+        assertFalse(detector.isHot(CACHE_SHOP_KEY + 4));
+    }
+
+    @Test
+    void testWindowSlidesOut() {
+        HotKeyDetector detector = new HotKeyDetector(true, 1, 10, 10);
+        record(detector, CACHE_SHOP_KEY, CACHE_SHOP_KEY + 1, 20);
+        assertTrue(detector.isHot(CACHE_SHOP_KEY + 1));
+        //窗口共5段，滑动4次仍在窗口内
+        for (int i = 0; i < 4; i++) {
+            detector.slide();
+        }
+        assertTrue(detector.isHot(CACHE_SHOP_KEY + 1));
+        detector.slide();
+        assertFalse(detector.isHot(CACHE_SHOP_KEY + 1));
+        assertTrue(detector.topK().isEmpty());
+    }
+
+    private static void record(HotKeyDetector detector, String keyPrefix, String key, int times) {
+        for (int i = 0; i < times; i++) {
+            detector.record(keyPrefix, key);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.hmdp;
+
+import com.hmdp.utils.RedisIdWorker;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * RedisIdWorker压测：对比逐个INCR、号段模式和雪花算法模式的吞吐量，并校验id不重复、单线程内严格递增。
+ * <p>
+ * mvn test -Dtest=RedisIdWorkerBenchmarkTests -Dbench=true -Dbench.threads=16 -Dbench.ids=20000
+ */
+@SpringBootTest
+@ActiveProfiles("bench")
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+class RedisIdWorkerBenchmarkTests {
+
+    private final int threads = Integer.getInteger("bench.threads", 16);
+    private final int idsPerThread = Integer.getInteger("bench.ids", 20000);
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testIncrMode() throws InterruptedException {
+        run("incr", new RedisIdWorker(stringRedisTemplate, "incr", 1));
+    }
+
+    @Test
+    void testSegmentMode() throws InterruptedException {
+        run("segment", new RedisIdWorker(stringRedisTemplate, "segment", 1000));
+    }
+
+    @Test
+    void testSnowflakeMode() throws InterruptedException {
+        RedisIdWorker idWorker = new RedisIdWorker(stringRedisTemplate, "snowflake", 1000);
+        try {
+            run("snowflake", idWorker);
+        } finally {
+            idWorker.close();
+        }
+    }
+
+    private void run(String mode, RedisIdWorker idWorker) throws InterruptedException {
+        //1.预热
+        for (int i = 0; i < 2000; i++) {
+            idWorker.nextId("bench");
+        }
+        //2.多线程并发生成id，每个线程校验自己拿到的id严格递增
+        long[][] ids = new long[threads][idsPerThread];
+        boolean[] monotonic = new boolean[threads];
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            es.submit(() -> {
+                try {
+                    long last = Long.MIN_VALUE;
+                    boolean ok = true;
+                    for (int i = 0; i < idsPerThread; i++) {
+                        long id = idWorker.nextId("bench");
+                        ok &= id > last;
+                        last = id;
+                        ids[index][i] = id;
+                    }
+                    monotonic[index] = ok;
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+
+        //3.输出吞吐量并校验
+        long total = (long) threads * idsPerThread;
+        System.out.printf("mode = %s, ids = %d, throughput = %.0f ids/s, avg = %.2f us/id%n",
+                mode, total, total * 1e9 / elapsed, elapsed / 1e3 / total * threads);
+        Set<Long> unique = new HashSet<>((int) (total * 2));
+        for (long[] values : ids) {
+            for (long id : values) {
+                unique.add(id);
+            }
+        }
+        assertEquals(total, unique.size(), "id重复");
+        for (boolean ok : monotonic) {
+            assertTrue(ok, "id不是严格递增");
+        }
+    }
+}
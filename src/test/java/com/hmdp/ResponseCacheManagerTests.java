@@ -0,0 +1,75 @@
+package com.hmdp;
+
+import com.hmdp.utils.ResponseCacheManager;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+
+import static com.hmdp.utils.RedisConstants.RESPONSE_CACHE_CHANNEL;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * 接口响应缓存：按分组清除、通知其他节点、清除期间开始的请求不写入旧内容、写满后过期的响应腾出空间
+ */
+class ResponseCacheManagerTests {
+
+    private StringRedisTemplate stringRedisTemplate;
+    private ResponseCacheManager manager;
+
+    @BeforeEach
+    void setUp() {
+        stringRedisTemplate = mock(StringRedisTemplate.class);
+        manager = new ResponseCacheManager(stringRedisTemplate, mock(RedisMessageListenerContainer.class), 100);
+    }
+
+    @Test
+    void testEvictGroup() {
+        put("/shop/1", "1", "{\"id\":1}");
+        put("/shop/2", "2", "{\"id\":2}");
+        String etag = manager.get("shop", "/shop/1").getEtag();
+        assertEquals(etag, put("/shop/1", "1", "{\"id\":1}"), "内容相同ETag相同");
+
+        manager.evict("shop", 1L);
+
+        assertNull(manager.get("shop", "/shop/1"));
+        assertNotNull(manager.get("shop", "/shop/2"));
+        verify(stringRedisTemplate).convertAndSend(RESPONSE_CACHE_CHANNEL, "shop:1");
+    }
+
+    @Test
+    void testRequestStartedBeforeEvictIsNotCached() {
+        long version = manager.version("shop");
+        //请求执行期间数据被修改
+        manager.evict("shop", 1L);
+        manager.put("shop", "/shop/1", "1", version, "{\"id\":1}".getBytes(StandardCharsets.UTF_8), 60);
+
+        assertNull(manager.get("shop", "/shop/1"));
+    }
+
+    @Test
+    void testFullRegionAcceptsNewKeysAfterExpiry() throws InterruptedException {
+        ResponseCacheManager small = new ResponseCacheManager(stringRedisTemplate, mock(RedisMessageListenerContainer.class), 2);
+        byte[] body = "{}".getBytes(StandardCharsets.UTF_8);
+        small.put("shop", "/shop/1", "1", small.version("shop"), body, 1);
+        small.put("shop", "/shop/2", "2", small.version("shop"), body, 1);
+        //写满之后不再写入新的响应
+        small.put("shop", "/shop/3", "3", small.version("shop"), body, 60);
+        assertNull(small.get("shop", "/shop/3"));
+
+        //已有的响应过期之后（没有被读到）可以继续写入
+        Thread.sleep(1100);
+        small.put("shop", "/shop/3", "3", small.version("shop"), body, 60);
+        small.put("shop", "/shop/4", "4", small.version("shop"), body, 60);
+        assertNotNull(small.get("shop", "/shop/3"));
+        assertNotNull(small.get("shop", "/shop/4"));
+    }
+
+    private String put(String requestKey, String group, String body) {
+        return manager.put("shop", requestKey, group, manager.version("shop"), body.getBytes(StandardCharsets.UTF_8), 60);
+    }
+}
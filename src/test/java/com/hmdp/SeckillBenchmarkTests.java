@@ -0,0 +1,211 @@
+package com.hmdp;
+
+import cn.hutool.core.io.IoUtil;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillKeys;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.hmdp.utils.RedisConstants.LOGIN_USER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 秒杀压测：在本地Redis和H2（MySQL兼容模式）上启动应用，并发请求 /voucher-order/seckill/{id}，
+ * 输出吞吐量和p50/p99/p999延迟，并校验没有超卖、没有一人多单、Redis库存与订单表一致。
+ * <p>
+ * mvn test -Dtest=SeckillBenchmarkTests -Dbench=true -Dbench.users=5000 -Dbench.stock=500 -Dbench.threads=200
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("bench")
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+class SeckillBenchmarkTests {
+
+    private static final String TOKEN_PREFIX = "bench-";
+
+    private final int users = Integer.getInteger("bench.users", 2000);
+    private final int stock = Integer.getInteger("bench.stock", 200);
+    private final int threads = Integer.getInteger("bench.threads", 200);
+    private final int requestsPerUser = Integer.getInteger("bench.requests-per-user", 2);
+
+    @LocalServerPort
+    private int port;
+
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testSeckill() throws Exception {
+        //1.准备秒杀券和登录用户
+        Long voucherId = createVoucher();
+        for (int i = 1; i <= users; i++) {
+            Map<String, String> user = new HashMap<>();
+            user.put("id", String.valueOf(i));
+            user.put("nickName", "bench_" + i);
+            stringRedisTemplate.opsForHash().putAll(LOGIN_USER_KEY + TOKEN_PREFIX + i, user);
+        }
+
+        //2.每个用户发起requestsPerUser次抢购，打乱顺序后并发执行
+        List<Integer> requests = new ArrayList<>(users * requestsPerUser);
+        for (int r = 0; r < requestsPerUser; r++) {
+            for (int i = 1; i <= users; i++) {
+                requests.add(i);
+            }
+        }
+        Collections.shuffle(requests);
+        URL url = new URL("http://localhost:" + port + "/voucher-order/seckill/" + voucherId);
+        long[] latencies = new long[requests.size()];
+        AtomicInteger accepted = new AtomicInteger();
+        Map<Integer, String> acceptedOrders = new ConcurrentHashMap<>();
+        ExecutorService es = Executors.newFixedThreadPool(threads);
+        CountDownLatch latch = new CountDownLatch(requests.size());
+        long begin = System.nanoTime();
+        for (int n = 0; n < requests.size(); n++) {
+            int index = n;
+            int userId = requests.get(n);
+            es.submit(() -> {
+                try {
+                    long start = System.nanoTime();
+                    String body = post(url, TOKEN_PREFIX + userId);
+                    latencies[index] = System.nanoTime() - start;
+                    if (body.contains("\"success\":true")) {
+                        accepted.incrementAndGet();
+                        acceptedOrders.put(userId, StrUtil.subBetween(body, "\"data\":\"", "\""));
+                    }
+                } catch (Exception e) {
+                    latencies[index] = -1;
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        long elapsed = System.nanoTime() - begin;
+        es.shutdown();
+
+        //3.输出吞吐量和延迟分布
+        long[] ok = Arrays.stream(latencies).filter(l -> l >= 0).sorted().toArray();
+        System.out.printf("requests = %d, errors = %d, accepted = %d, throughput = %.1f req/s%n",
+                latencies.length, latencies.length - ok.length, accepted.get(), latencies.length * 1e9 / elapsed);
+        System.out.printf("latency p50 = %.2f ms, p99 = %.2f ms, p999 = %.2f ms, max = %.2f ms%n",
+                percentile(ok, 0.5), percentile(ok, 0.99), percentile(ok, 0.999), percentile(ok, 1.0));
+
+        //4.等待异步落库完成
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (countOrders(voucherId) < accepted.get() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+
+        //5.校验正确性
+        List<VoucherOrder> orders = voucherOrderService.query().eq("voucher_id", voucherId).list();
+        Set<Long> buyers = new HashSet<>();
+        orders.forEach(order -> buyers.add(order.getUserId()));
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        int redisStock = redisStock(voucherId);
+        System.out.printf("orders = %d, db stock = %d, redis stock = %d%n", orders.size(), seckillVoucher.getStock(), redisStock);
+        assertTrue(orders.size() <= stock, "超卖");
+        assertEquals(orders.size(), buyers.size(), "一人多单");
+        assertEquals(accepted.get(), orders.size(), "下单成功数与订单表不一致");
+        assertEquals(stock - orders.size(), redisStock, "Redis库存与订单表不一致");
+        assertEquals(stock - orders.size(), seckillVoucher.getStock().intValue(), "数据库库存与订单表不一致");
+        //6.抽查订单状态接口
+        for (Map.Entry<Integer, String> entry : acceptedOrders.entrySet()) {
+            URL statusUrl = new URL("http://localhost:" + port + "/voucher-order/" + entry.getValue() + "/status?wait=5");
+            String body = get(statusUrl, TOKEN_PREFIX + entry.getKey());
+            assertTrue(body.contains("\"status\":1"), "订单状态不是下单成功：" + body);
+            break;
+        }
+    }
+
+    @AfterEach
+    void cleanUp() {
+        for (int i = 1; i <= users; i++) {
+            stringRedisTemplate.delete(LOGIN_USER_KEY + TOKEN_PREFIX + i);
+        }
+    }
+
+    private Long createVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("压测券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(200L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        //H2每次启动后id从头开始，清除上次压测留在Redis中的购买记录
+        int segments = Integer.parseInt(stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucher.getId()));
+        for (int i = 0; i < segments; i++) {
+            stringRedisTemplate.delete(SeckillKeys.orderKey(voucher.getId(), i));
+        }
+        return voucher.getId();
+    }
+
+    private int countOrders(Long voucherId) {
+        return voucherOrderService.query().eq("voucher_id", voucherId).count();
+    }
+
+    private int redisStock(Long voucherId) {
+        int segments = Integer.parseInt(stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId));
+        int total = 0;
+        for (int i = 0; i < segments; i++) {
+            total += Integer.parseInt(stringRedisTemplate.opsForValue().get(SeckillKeys.stockKey(voucherId, i)));
+        }
+        return total;
+    }
+
+    private static String post(URL url, String token) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("authorization", token);
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(10000);
+        return IoUtil.read(conn.getInputStream(), StandardCharsets.UTF_8);
+    }
+
+    private static String get(URL url, String token) throws Exception {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestProperty("authorization", token);
+        conn.setConnectTimeout(5000);
+        conn.setReadTimeout(10000);
+        return IoUtil.read(conn.getInputStream(), StandardCharsets.UTF_8);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,207 @@
+package com.hmdp;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.service.impl.VoucherOrderServiceImpl;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.UserHolder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.test.context.ActiveProfiles;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SEGMENTS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STREAM_SEGMENTS_KEY;
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 多分段库存：用户按id路由到归属分段，在归属分段判断一人一单；归属分段售罄后到其他分段扣库存，全部售罄时撤销占位；
+ * 各节点按集群统一的订单stream数启动消费者；数据库拒绝订单后撤销Redis中的扣减。
+ * 需要本地Redis，与压测使用同一个profile
+ * <p>
+ * mvn test -Dtest=SeckillSegmentTests -Dbench=true
+ */
+@SpringBootTest(properties = "hmdp.seckill.segments=" + SeckillSegmentTests.SEGMENTS)
+@ActiveProfiles("bench")
+@EnabledIfSystemProperty(named = "bench", matches = "true")
+class SeckillSegmentTests {
+
+    static final int SEGMENTS = 4;
+
+    @Resource
+    private IVoucherService voucherService;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final List<Long> vouchers = new ArrayList<>();
+
+    @AfterEach
+    void cleanUp() {
+        UserHolder.removeUser();
+        for (Long voucherId : vouchers) {
+            deleteKeys(voucherId);
+        }
+    }
+
+    @Test
+    void testRoutingAndFallback() {
+        //1.每个分段1张库存
+        Long voucherId = createVoucher(SEGMENTS);
+        long[] users = usersOfSegment(0, SEGMENTS + 2);
+
+        //2.第一个用户在归属分段下单
+        assertTrue(seckill(voucherId, users[0]).getSuccess());
+        assertEquals(0, stock(voucherId, 0));
+        assertTrue(bought(voucherId, 0, users[0]));
+        //3.同一用户重复下单，在归属分段被拒绝
+        assertEquals("不能重复下单", seckill(voucherId, users[0]).getErrorMsg());
+
+        //4.归属分段已空，其余用户到其他分段扣库存，购买记录仍在归属分段
+        for (int i = 1; i < SEGMENTS; i++) {
+            assertTrue(seckill(voucherId, users[i]).getSuccess());
+            assertTrue(bought(voucherId, 0, users[i]));
+        }
+        for (int i = 0; i < SEGMENTS; i++) {
+            assertEquals(0, stock(voucherId, i));
+        }
+        assertEquals("不能重复下单", seckill(voucherId, users[1]).getErrorMsg());
+
+        //5.全部分段售罄，撤销归属分段中的占位
+        assertEquals("库存不足", seckill(voucherId, users[SEGMENTS]).getErrorMsg());
+        assertFalse(bought(voucherId, 0, users[SEGMENTS]));
+        //6.售罄标记生效，不再访问Redis
+        assertEquals("库存不足", seckill(voucherId, users[SEGMENTS + 1]).getErrorMsg());
+        assertFalse(bought(voucherId, 0, users[SEGMENTS + 1]));
+    }
+
+    @Test
+    void testSegmentsNotCachedBeforeCreated() {
+        //1.秒杀信息写入之前的请求不会把分段数记成1
+        Long voucherId = createVoucher(SEGMENTS);
+        String segments = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENTS_KEY + voucherId);
+        stringRedisTemplate.delete(SECKILL_SEGMENTS_KEY + voucherId);
+        long user = usersOfSegment(2, 1)[0];
+        assertFalse(seckill(voucherId, user).getSuccess());
+
+        //2.分段数写入之后，按全部分段路由到用户的归属分段
+        stringRedisTemplate.opsForValue().set(SECKILL_SEGMENTS_KEY + voucherId, segments);
+        assertTrue(seckill(voucherId, user).getSuccess());
+        assertTrue(bought(voucherId, 2, user));
+        assertFalse(bought(voucherId, 0, user));
+        assertEquals(0, stock(voucherId, 2));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testConsumersFollowClusterStreamCount() {
+        //1.启动时集群的stream数不小于本节点的分段数
+        String streams = stringRedisTemplate.opsForValue().get(SECKILL_STREAM_SEGMENTS_KEY);
+        assertTrue(Integer.parseInt(streams) >= SEGMENTS);
+        try {
+            //2.其他节点以更多分段启动后，本节点为新增的stream启动消费者
+            stringRedisTemplate.opsForValue().set(SECKILL_STREAM_SEGMENTS_KEY, String.valueOf(SEGMENTS + 2));
+            ((VoucherOrderServiceImpl) voucherOrderService).checkStreamSegments();
+            Map<String, Object> status = (Map<String, Object>) voucherOrderService.queryOrderQueueStatus().getData();
+            assertEquals(SEGMENTS + 2, ((List<?>) status.get("queues")).size());
+
+            //3.分段数超过集群的stream数时拒绝创建
+            stringRedisTemplate.opsForValue().set(SECKILL_STREAM_SEGMENTS_KEY, String.valueOf(SEGMENTS - 1));
+            assertThrows(IllegalStateException.class, () -> createVoucher(SEGMENTS));
+        } finally {
+            stringRedisTemplate.opsForValue().set(SECKILL_STREAM_SEGMENTS_KEY, streams);
+        }
+    }
+
+    @Test
+    void testRejectedOrderRolledBackInRedis() throws InterruptedException {
+        //1.数据库中的库存已经为0，Redis中仍有库存
+        Long voucherId = createVoucher(SEGMENTS);
+        seckillVoucherService.update().setSql("stock = 0").eq("voucher_id", voucherId).update();
+        long user = usersOfSegment(1, 1)[0];
+        assertTrue(seckill(voucherId, user).getSuccess());
+        assertEquals(0, stock(voucherId, 1));
+
+        //2.落库失败后加回库存并清除购买记录，用户可以重新下单
+        for (int i = 0; i < 100 && bought(voucherId, 1, user); i++) {
+            Thread.sleep(100);
+        }
+        assertFalse(bought(voucherId, 1, user));
+        assertEquals(1, stock(voucherId, 1));
+    }
+
+    private Result seckill(Long voucherId, long userId) {
+        UserDTO user = new UserDTO();
+        user.setId(userId);
+        UserHolder.saveUser(user);
+        return voucherOrderService.addSeckillVoucher(voucherId);
+    }
+
+    private Long createVoucher(int stock) {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("分段测试券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(200L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(stock);
+        voucher.setBeginTime(LocalDateTime.now().minusHours(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        vouchers.add(voucher.getId());
+        //H2每次启动后id从头开始，清除上次测试留在Redis中的购买记录
+        for (int i = 0; i < SEGMENTS; i++) {
+            stringRedisTemplate.delete(SeckillKeys.orderKey(voucher.getId(), i));
+        }
+        return voucher.getId();
+    }
+
+    /**
+     * 找出归属于指定分段的count个用户id
+     */
+    private static long[] usersOfSegment(int segment, int count) {
+        long[] users = new long[count];
+        int n = 0;
+        for (long userId = 1; n < count; userId++) {
+            if (SeckillKeys.homeSegment(userId, SEGMENTS) == segment) {
+                users[n++] = userId;
+            }
+        }
+        return users;
+    }
+
+    private int stock(Long voucherId, int segment) {
+        return Integer.parseInt(stringRedisTemplate.opsForValue().get(SeckillKeys.stockKey(voucherId, segment)));
+    }
+
+    private boolean bought(Long voucherId, int segment, long userId) {
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue().getBit(SeckillKeys.orderKey(voucherId, segment), userId));
+    }
+
+    private void deleteKeys(Long voucherId) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < SEGMENTS; i++) {
+            keys.add(SeckillKeys.stockKey(voucherId, i));
+            keys.add(SeckillKeys.orderKey(voucherId, i));
+            keys.add(SeckillKeys.metaKey(voucherId, i));
+        }
+        keys.add(SECKILL_SEGMENTS_KEY + voucherId);
+        stringRedisTemplate.delete(keys);
+    }
+}